@@ -1,11 +1,23 @@
 package com.qualifacts.carelogic.gateway.queue;
 
-import java.io.IOException;
-import java.util.ArrayList;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.validation.Valid;
 
 import org.apache.commons.collections.MapUtils;
@@ -13,29 +25,27 @@ import org.apache.commons.lang.StringUtils;
 import org.joda.time.LocalDate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+import org.springframework.amqp.core.Message;
 import org.springframework.amqp.rabbit.annotation.RabbitHandler;
 import org.springframework.amqp.rabbit.annotation.RabbitListener;
+import org.springframework.amqp.support.AmqpHeaders;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
-import org.springframework.http.HttpMethod;
 import org.springframework.messaging.handler.annotation.Headers;
 import org.springframework.messaging.handler.annotation.Payload;
 import org.springframework.stereotype.Component;
-import org.springframework.util.ObjectUtils;
-import org.springframework.web.util.UriComponentsBuilder;
 
-import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.JsonMappingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.qualifacts.carelogic.common.exception.BusinessException;
-import com.qualifacts.carelogic.common.response.BaseResponse;
-import com.qualifacts.carelogic.configuration.model.Organization;
 import com.qualifacts.carelogic.gateway.context.ApiGatewayContextUtil;
-import com.qualifacts.carelogic.gateway.service.ConfigurationApiService;
+import com.qualifacts.carelogic.gateway.queue.PatientMessageRouter.Enrichment;
 import com.qualifacts.carelogic.gateway.service.ConsumerApiService;
 import com.qualifacts.carelogic.gateway.service.util.Constants;
 
+import io.micrometer.core.instrument.Timer;
+
 @Component
 @ConditionalOnProperty("rabbitmq.enabled")
 @RabbitListener(queues = "api.gateway.queue.patient", containerFactory = "listenerContainerFactory")
@@ -47,15 +57,179 @@ public class ApiGatewayPatientListener extends ApiGatewayQueueListener {
 	private ConsumerApiService consumerApiService;
 
 	@Autowired
-	private ConfigurationApiService configurationApiService;
+	private ConfigurationValueCache configurationValueCache;
+
+	@Autowired
+	private OrganizationGenealogyIndex organizationGenealogyIndex;
+
+	@Autowired
+	private CihBatchSender cihBatchSender;
+
+	@Autowired
+	private PatientEventCoalescer patientEventCoalescer;
+
+	@Autowired
+	private PatientListenerMetrics metrics;
+
+	@Autowired
+	private PatientFailureHandler failureHandler;
+
+	@Autowired
+	private TenantScheduler tenantScheduler;
 	
 	private static final String SECTION_CIH_INTEGRATION = "CIH Integration";
 	private static final String SUB_SECTION_HIE_GENERAL_INT = "HIE General Integration";
 	private static final String NAME_ID_NUMBER_TYPE = "ID Number Type";
-	
+
+	private static final String MDC_CORRELATION_ID = "correlationId";
+
+	@Value("${api.gateway.patient.log.sample-rate:1}")
+	private long logSampleRate;
+
+	@Value("${api.gateway.patient.pipeline.enabled:false}")
+	private boolean pipelineEnabled;
+
+	@Value("${api.gateway.patient.pipeline.threads:8}")
+	private int pipelineThreads;
+
+	@Value("${api.gateway.patient.pipeline.queue-capacity:256}")
+	private int pipelineQueueCapacity;
+
+	private ExecutorService pipelineExecutor;
+
+	private final AtomicLong sampleCounter = new AtomicLong();
+	private final AtomicLong correlationSequence = new AtomicLong();
+
+	@Autowired
+	private PatientMessageRouter router;
+
+	private QueryStringTemplate cihIntegrationTemplate;
+	private QueryStringTemplate cihMeasureTemplate;
+	private QueryStringTemplate myStrengthTemplate;
+	private QueryStringTemplate adtConsumerTemplate;
+	private QueryStringTemplate ccdaConsumerTemplate;
+	private QueryStringTemplate gnrintConsumerTemplate;
+	private QueryStringTemplate cansConsumerTemplate;
+
+	@PostConstruct
+	public void init() {
+		initTemplates();
+		if (pipelineEnabled) {
+			pipelineExecutor = new ThreadPoolExecutor(pipelineThreads, pipelineThreads, 0L, TimeUnit.MILLISECONDS,
+					new ArrayBlockingQueue<Runnable>(pipelineQueueCapacity), new ThreadFactory() {
+						private final AtomicInteger count = new AtomicInteger();
+
+						@Override
+						public Thread newThread(Runnable runnable) {
+							Thread thread = new Thread(runnable, "patient-pipeline-" + count.incrementAndGet());
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+		}
+		router.registerLastWriteWins(Constants.Patient.TYPE_ADT, null, EnumSet.of(Enrichment.CONFIGURATION_VALUE), this::sendPatientToCih)
+				.register(Constants.Patient.TYPE_CCDA, null, EnumSet.of(Enrichment.CONFIGURATION_VALUE), this::sendCCDAToCih)
+				.register(null, Constants.Patient.EVENT_REFER_PATIENT, EnumSet.of(Enrichment.CONFIGURATION_VALUE), this::sendPersonContactInfoToCih)
+				.register(Constants.Patient.TYPE_GNRINT, null, EnumSet.of(Enrichment.CONFIGURATION_VALUE, Enrichment.GENEALOGY), this::sendMessageToCih);
+	}
+
+	@PreDestroy
+	public void destroy() {
+		if (pipelineExecutor != null) {
+			pipelineExecutor.shutdown();
+		}
+	}
+
+	private void initTemplates() {
+		cihIntegrationTemplate = new QueryStringTemplate(URL_CIH_INTEGRATION,
+				Constants.Patient.ENTITY,
+				Constants.Patient.OPERATION,
+				Constants.Patient.EVENT,
+				Constants.Patient.TYPE,
+				Constants.Patient.ORGANIZATION,
+				Constants.Patient.CLIENT_PROGRAM_ID,
+				Constants.Patient.ACTIVITY_DETAIL_ID,
+				Constants.Patient.ACTIVITY_LOG_ID,
+				Constants.Patient.CLIENT_EPISODE_ID,
+				Constants.Patient.PROGRAM_ID,
+				Constants.Patient.PROGRAM_NAME);
+		cihMeasureTemplate = new QueryStringTemplate(URL_CIH_INTEGRATION,
+				Constants.Patient.ENTITY,
+				Constants.Patient.OPERATION,
+				Constants.Patient.EVENT,
+				Constants.Patient.TYPE,
+				Constants.Patient.ORGANIZATION,
+				Constants.Patient.CLIENT_PROGRAM_ID,
+				Constants.Patient.ACTIVITY_DETAIL_ID,
+				Constants.Patient.ACTIVITY_LOG_ID,
+				Constants.Patient.CLIENT_EPISODE_ID,
+				Constants.Patient.PROGRAM_ID,
+				Constants.Patient.PROGRAM_NAME,
+				Constants.Patient.MEASURE_NAME);
+		myStrengthTemplate = new QueryStringTemplate(URL_CIH_SEND_PATIENT_TO_MYSTRENGTH,
+				Constants.Patient.ENTITY,
+				Constants.Patient.OPERATION,
+				Constants.Patient.EVENT,
+				Constants.Patient.TYPE,
+				Constants.Patient.ORGANIZATION);
+		adtConsumerTemplate = new QueryStringTemplate(URL_CONSUMER_INTEGRATION_GET_PATIENT_BY_ID,
+				Constants.Patient.CLIENT_PROGRAM_ID,
+				Constants.Patient.APPOINTMENT_ID,
+				Constants.Patient.ORGANIZATION_ID,
+				Constants.Patient.EXTRACT_PERIOD,
+				Constants.Patient.CLIENT_PROGRAM_BEGIN_DATE,
+				Constants.Patient.DISCHARGE_DATE,
+				Constants.Patient.EVENT,
+				Constants.Patient.DIAGNOSIS_DOCUMENT_ID,
+				Constants.Patient.STAFF_ID,
+				Constants.Patient.CLIENT_EPISODE_ID,
+				Constants.Patient.ACTIVITY_ID,
+				Constants.Patient.APPT_ORGANIZATION_ID,
+				Constants.Patient.DESCRIPTOR_NAME,
+				Constants.Patient.DESCRIPTOR_TYPE,
+				Constants.Patient.MOD_CONSENT_CONFIG_ID,
+				Constants.Patient.DISCHARGE_DISPOSITION_ID,
+				Constants.Patient.DISCHARGE_LOCATION_ID);
+		ccdaConsumerTemplate = new QueryStringTemplate(URL_CONSUMER_INTEGRATION_GET_PATIENT_BY_ID,
+				Constants.Patient.CLIENT_PROGRAM_ID,
+				Constants.Patient.APPOINTMENT_ID,
+				Constants.Patient.ORGANIZATION_ID,
+				Constants.Patient.EXTRACT_PERIOD,
+				Constants.Patient.CLIENT_PROGRAM_BEGIN_DATE,
+				Constants.Patient.DISCHARGE_DATE,
+				Constants.Patient.STAFF_ID,
+				Constants.Patient.CLIENT_EPISODE_ID,
+				Constants.Patient.ACTIVITY_ID,
+				Constants.Patient.APPT_ORGANIZATION_ID,
+				Constants.Patient.MOD_CONSENT_CONFIG_ID,
+				Constants.Patient.DISCHARGE_DISPOSITION_ID,
+				Constants.Patient.DISCHARGE_LOCATION_ID);
+		gnrintConsumerTemplate = new QueryStringTemplate(URL_CONSUMER_INTEGRATION_GET_PATIENT_BY_ID,
+				Constants.Patient.CLIENT_PROGRAM_ID,
+				Constants.Patient.APPOINTMENT_ID,
+				Constants.Patient.ORGANIZATION_ID,
+				Constants.Patient.EXTRACT_PERIOD,
+				Constants.Patient.CLIENT_PROGRAM_BEGIN_DATE,
+				Constants.Patient.DISCHARGE_DATE,
+				Constants.Patient.STAFF_ID,
+				Constants.Patient.CLIENT_EPISODE_ID,
+				Constants.Patient.ACTIVITY_ID,
+				Constants.Patient.APPT_ORGANIZATION_ID,
+				Constants.Patient.DOCUMENT_ID,
+				Constants.Patient.DESCRIPTOR_NAME,
+				Constants.Patient.DESCRIPTOR_TYPE,
+				Constants.Patient.MOD_CONSENT_CONFIG_ID,
+				Constants.Patient.DISCHARGE_DISPOSITION_ID,
+				Constants.Patient.DISCHARGE_LOCATION_ID);
+		cansConsumerTemplate = new QueryStringTemplate(URL_CONSUMER_INTEGRATION_GET_PATIENT_CANS,
+				Constants.Patient.DOCUMENT_ID);
+	}
+
 	@RabbitHandler
-	public void onMessage(@Valid @Payload Object message, @Headers Map<String, Object> headers) {
-		super.onMessage(message, headers);
+	public void onMessage(@Valid @Payload Object message, @Headers Map<String, Object> headers, Message amqpMessage) {
+		metrics.recordQueueLag(headers);
+		Timer.Sample messageSample = metrics.start();
+		Map<String, Object> receivedMessage = receive(message, headers);
 		//TODO: remove this section and related properties
 		/*try {
 			String patientId = (String) mapMessage.get(Constants.Patient.PATIENT_ID);
@@ -70,342 +244,492 @@ public class ApiGatewayPatientListener extends ApiGatewayQueueListener {
 			LOGGER.error(e.getMessage(), e);
 		}*/
 		
+		String outcome = PatientListenerMetrics.OUTCOME_ERROR;
+		PatientEvent patientEvent = null;
+		TenantScheduler.Permit permit = null;
+		// handlers run in routing order; the ones that succeeded on an earlier attempt are skipped
+		int completedHandlers = failureHandler.isEnabled() ? PatientFailureHandler.getCompletedHandlers(amqpMessage) : 0;
+		MDC.put(MDC_CORRELATION_ID, correlationId(headers));
 		try {
-			LOGGER.info(" ----------ConsumerApiService------- Type:: " +  MapUtils.getString(mapMessage, Constants.Patient.TYPE));
-			Map<String, Object> params = new HashMap<String, Object>();
-			String patientId = MapUtils.getString(mapMessage, Constants.Patient.PATIENT_ID);
-			Long documentId = MapUtils.getLong(mapMessage, Constants.Patient.DOCUMENT_ID);
-			if (StringUtils.isEmpty(patientId) && documentId==null)
+			Timer.Sample decodeSample = metrics.start();
+			PatientMessageContext context = new PatientMessageContext(PatientEvent.from(receivedMessage));
+			patientEvent = context.getEvent();
+			metrics.recordStage(decodeSample, PatientListenerMetrics.STAGE_DECODE, patientEvent);
+			if (LOGGER.isInfoEnabled() && isSampled()) {
+				LOGGER.info("Patient message received type={} event={} organizationId={}", patientEvent.getType(),
+						patientEvent.getEvent(), patientEvent.getOrganizationId());
+			}
+			Map<String, Object> params = context.getParams();
+			String patientId = patientEvent.getPatientId();
+			if (StringUtils.isEmpty(patientId) && patientEvent.getDocumentIdValue()==null)
 				throw new BusinessException("At least one of the parameters (patientId or documentId) is required.");
 
-			params.put(Constants.Patient.PATIENT_ID, patientId);
-			
-			String type = MapUtils.getString(mapMessage, Constants.Patient.TYPE);
-			String event = MapUtils.getString(mapMessage, Constants.Patient.EVENT);
-			String payload = MapUtils.getString(mapMessage, Constants.Patient.PAYLOAD);
-			Map<String, Object> payloadArray = getParametersPayload(payload);
-			UriComponentsBuilder cihIntegrationUri = UriComponentsBuilder.fromUriString(URL_CIH_INTEGRATION)
-					.queryParam(Constants.Patient.ENTITY, MapUtils.getString(mapMessage, Constants.Patient.ENTITY))
-					.queryParam(Constants.Patient.OPERATION, MapUtils.getString(mapMessage, Constants.Patient.OPERATION))
-					.queryParam(Constants.Patient.EVENT, event)
-					.queryParam(Constants.Patient.TYPE, type)
-					.queryParam(Constants.Patient.ORGANIZATION, MapUtils.getString(mapMessage, Constants.Patient.ORGANIZATION))
-					.queryParam(Constants.Patient.CLIENT_PROGRAM_ID, MapUtils.getString(payloadArray, Constants.Patient.CLIENT_PROGRAM_ID))
-					.queryParam(Constants.Patient.ACTIVITY_DETAIL_ID, MapUtils.getString(payloadArray, Constants.Patient.ACTIVITY_DETAIL_ID))
-					.queryParam(Constants.Patient.ACTIVITY_LOG_ID, MapUtils.getString(payloadArray, Constants.Patient.ACTIVITY_LOG_ID))
-					.queryParam(Constants.Patient.CLIENT_EPISODE_ID, MapUtils.getString(payloadArray, Constants.Patient.CLIENT_EPISODE_ID))
-					.queryParam(Constants.Patient.PROGRAM_ID, MapUtils.getString(payloadArray, Constants.Patient.PROGRAM_ID))
-					.queryParam(Constants.Patient.PROGRAM_NAME, MapUtils.getString(payloadArray, Constants.Patient.PROGRAM_NAME));
-
-
-			String organizationId = MapUtils.getString(mapMessage, Constants.Patient.ORGANIZATION_ID);
-            if(StringUtils.isNotEmpty(organizationId)) {
-            	BaseResponse<String>  configValue = configurationApiService.getConfigurationValue(HYSTRIX_CMDKEY_CONFIGURATION_GET_VALUE_CONFIGURATIONS, SECTION_CIH_INTEGRATION,SUB_SECTION_HIE_GENERAL_INT,NAME_ID_NUMBER_TYPE, Long.valueOf(organizationId));
-            	params.put(Constants.Patient.CONFIGURATION_VALUE, configValue.getResponse());
-            }
-            
-			ApiGatewayContextUtil.getContext().getHeaders().put(Constants.Patient.REVOKE_CONSENT, MapUtils.getString(mapMessage, Constants.Patient.REVOKE_CONSENT));
-			ApiGatewayContextUtil.getContext().getHeaders().put(Constants.Patient.REVOKE_SENSITIVE_CONSENT, MapUtils.getString(mapMessage, Constants.Patient.REVOKE_SENSITIVE_CONSENT));
-
-			if (type!= null && Constants.Patient.TYPE_ADT.equals(type)) { 
-				params.put(Constants.Patient.APPOINTMENT_STATUS, MapUtils.getString(mapMessage, Constants.Patient.APPOINTMENT_STATUS));
-                UriComponentsBuilder uriBuilder = UriComponentsBuilder
-                        .fromUriString(URL_CONSUMER_INTEGRATION_GET_PATIENT_BY_ID)
-                        .queryParam(Constants.Patient.CLIENT_PROGRAM_ID,
-                                MapUtils.getString(mapMessage, Constants.Patient.CLIENT_PROGRAM_ID))
-                        .queryParam(Constants.Patient.APPOINTMENT_ID,
-                                MapUtils.getString(mapMessage, Constants.Patient.APPOINTMENT_ID))
-                        .queryParam(Constants.Patient.ORGANIZATION_ID,
-                                MapUtils.getString(mapMessage, Constants.Patient.ORGANIZATION_ID))
-                        .queryParam(Constants.Patient.EXTRACT_PERIOD,
-                                MapUtils.getString(mapMessage, Constants.Patient.EXTRACT_PERIOD))
-                        .queryParam(Constants.Patient.CLIENT_PROGRAM_BEGIN_DATE,
-                                MapUtils.getString(mapMessage, Constants.Patient.CLIENT_PROGRAM_BEGIN_DATE))
-                        .queryParam(Constants.Patient.DISCHARGE_DATE,
-                                MapUtils.getString(mapMessage, Constants.Patient.DISCHARGE_DATE))
-                        .queryParam(Constants.Patient.EVENT, MapUtils.getString(mapMessage, Constants.Patient.EVENT))
-                        .queryParam(Constants.Patient.DIAGNOSIS_DOCUMENT_ID,
-                                MapUtils.getString(mapMessage, Constants.Patient.DIAGNOSIS_DOCUMENT_ID))
-                        .queryParam(Constants.Patient.STAFF_ID,
-                                MapUtils.getString(mapMessage, Constants.Patient.STAFF_ID))
-                        .queryParam(Constants.Patient.CLIENT_EPISODE_ID,
-                                MapUtils.getString(payloadArray, Constants.Patient.CLIENT_EPISODE_ID))
-                        .queryParam(Constants.Patient.ACTIVITY_ID,
-                                MapUtils.getString(payloadArray, Constants.Patient.ACTIVITY_ID))
-                        .queryParam(Constants.Patient.APPT_ORGANIZATION_ID,
-                                MapUtils.getString(payloadArray, Constants.Patient.APPT_ORGANIZATION_ID)) 
-                        .queryParam(Constants.Patient.DESCRIPTOR_NAME,
-                                		(String)params.get(Constants.Patient.CONFIGURATION_VALUE))
-                        .queryParam(Constants.Patient.DESCRIPTOR_TYPE,
-                		        NAME_ID_NUMBER_TYPE)
-                        .queryParam(Constants.Patient.MOD_CONSENT_CONFIG_ID, MapUtils.getLong(mapMessage, Constants.Patient.MOD_CONSENT_CONFIG_ID))
-                        .queryParam(Constants.Patient.DISCHARGE_DISPOSITION_ID, MapUtils.getLong(payloadArray, Constants.Patient.DISCHARGE_DISPOSITION_ID))
-                        .queryParam(Constants.Patient.DISCHARGE_LOCATION_ID, MapUtils.getLong(payloadArray, Constants.Patient.DISCHARGE_LOCATION_ID));
-				
-				//TODO: change hystrix cmdkey cih to a generic one and not by domain (patient)
-				LOGGER.info("before sendPatientToCIH - params:: " + params);
-				consumerApiService.sendPatientToCIH(
-						HYSTRIX_CMDKEY_CONSUMER_GET_PATIENT,
-						uriBuilder.build().toString(),
-						HYSTRIX_CMDKEY_CIH_SEND_NEW_PATIENT,
-						cihIntegrationUri.build().toString(),
-						params);
+			PatientMessageRouter.Routing routing = router.route(patientEvent.getType(), patientEvent.getEvent());
+			if (routing.isEmpty()) {
+				LOGGER.debug("No handler for type {} and event {}", patientEvent.getType(), patientEvent.getEvent());
+				outcome = PatientListenerMetrics.OUTCOME_SKIPPED;
+				return;
 			}
-			
-			if (type!= null && Constants.Patient.TYPE_CCDA.equals(type)) {
-				
-				params.put(Constants.Patient.EXTRACT_PERIOD, MapUtils.getString(mapMessage, Constants.Patient.EXTRACT_PERIOD));
-				params.put(Constants.Patient.ORGANIZATION_ID, MapUtils.getString(mapMessage, Constants.Patient.ORGANIZATION_ID));
-				params.put(Constants.Patient.EXCLUSIONS, MapUtils.getString(mapMessage, Constants.Patient.EXCLUSIONS));
-				params.put(Constants.Patient.ORGANIZATION, MapUtils.getString(mapMessage, Constants.Patient.ORGANIZATION));
-				params.put(Constants.Patient.EVENT, event);
-				
-				LOGGER.debug("before sendCCDAToCIH - params:: " + params);
-
-                UriComponentsBuilder uriBuilder = UriComponentsBuilder
-                        .fromUriString(URL_CONSUMER_INTEGRATION_GET_PATIENT_BY_ID)
-                        .queryParam(Constants.Patient.CLIENT_PROGRAM_ID,
-                                MapUtils.getString(mapMessage, Constants.Patient.CLIENT_PROGRAM_ID))
-                        .queryParam(Constants.Patient.APPOINTMENT_ID,
-                                MapUtils.getString(mapMessage, Constants.Patient.APPOINTMENT_ID))
-                        .queryParam(Constants.Patient.ORGANIZATION_ID,
-                                MapUtils.getString(mapMessage, Constants.Patient.ORGANIZATION_ID))
-                        .queryParam(Constants.Patient.EXTRACT_PERIOD,
-                                MapUtils.getString(mapMessage, Constants.Patient.EXTRACT_PERIOD))
-                        .queryParam(Constants.Patient.CLIENT_PROGRAM_BEGIN_DATE,
-                                MapUtils.getString(mapMessage, Constants.Patient.CLIENT_PROGRAM_BEGIN_DATE))
-                        .queryParam(Constants.Patient.DISCHARGE_DATE,
-                                MapUtils.getString(mapMessage, Constants.Patient.DISCHARGE_DATE))
-                        .queryParam(Constants.Patient.STAFF_ID,
-                                MapUtils.getString(mapMessage, Constants.Patient.STAFF_ID))
-                        .queryParam(Constants.Patient.CLIENT_EPISODE_ID,
-                                MapUtils.getString(payloadArray, Constants.Patient.CLIENT_EPISODE_ID))
-                        .queryParam(Constants.Patient.ACTIVITY_ID,
-                                MapUtils.getString(payloadArray, Constants.Patient.ACTIVITY_ID))
-                        .queryParam(Constants.Patient.APPT_ORGANIZATION_ID,
-                                MapUtils.getString(payloadArray, Constants.Patient.APPT_ORGANIZATION_ID))
-                        .queryParam(Constants.Patient.MOD_CONSENT_CONFIG_ID, MapUtils.getLong(mapMessage, Constants.Patient.MOD_CONSENT_CONFIG_ID))
-                        .queryParam(Constants.Patient.DISCHARGE_DISPOSITION_ID, MapUtils.getLong(payloadArray, Constants.Patient.DISCHARGE_DISPOSITION_ID))
-                        .queryParam(Constants.Patient.DISCHARGE_LOCATION_ID, MapUtils.getLong(payloadArray, Constants.Patient.DISCHARGE_LOCATION_ID));
-
-				consumerApiService.sendCCDAToCIH(
-						HYSTRIX_CMDKEY_CONSUMER_GET_PATIENT,
-						uriBuilder.build().toString(),
-						HYSTRIX_CMDKEY_CIH_SEND_NEW_PATIENT,
-						cihIntegrationUri.build().toString(),
-						params);
-				
+
+			if (routing.isLastWriteWins() && patientEventCoalescer.isEnabled()
+					&& patientEventCoalescer.isSuperseded(patientEvent)) {
+				LOGGER.debug("Skipping {} {} message of patient {}, superseded by a newer one", patientEvent.getType(),
+						patientEvent.getEvent(), patientId);
+				outcome = PatientListenerMetrics.OUTCOME_SKIPPED;
+				return;
 			}
-			
-			if (event!=null && Constants.Patient.EVENT_REFER_PATIENT.equals(event)) {
-				
-				cihIntegrationUri = UriComponentsBuilder.fromUriString(URL_CIH_SEND_PATIENT_TO_MYSTRENGTH)
-						.queryParam(Constants.Patient.ENTITY, MapUtils.getString(mapMessage, Constants.Patient.ENTITY))
-						.queryParam(Constants.Patient.OPERATION, MapUtils.getString(mapMessage, Constants.Patient.OPERATION))
-						.queryParam(Constants.Patient.EVENT, event)
-						.queryParam(Constants.Patient.TYPE, type)
-						.queryParam(Constants.Patient.ORGANIZATION, MapUtils.getString(mapMessage, Constants.Patient.ORGANIZATION));
-				
-				params.put(Constants.Patient.CLINICIAN_ID, MapUtils.getString(mapMessage, Constants.Patient.CLINICIAN_ID));
-				params.put(Constants.Patient.ORGANIZATION_ACCESS_CODE, MapUtils.getString(mapMessage, Constants.Patient.ORGANIZATION_ACCESS_CODE));
-				params.put(Constants.Patient.ORGANIZATION_LOGIN, MapUtils.getString(mapMessage, Constants.Patient.ORGANIZATION_LOGIN));
-				params.put(Constants.Patient.ORGANIZATION_PASSWORD, MapUtils.getString(mapMessage, Constants.Patient.ORGANIZATION_PASSWORD));
-				params.put(Constants.Patient.ORGANIZATION_SECRET_CODE, MapUtils.getString(mapMessage, Constants.Patient.ORGANIZATION_SECRET_CODE));
-				consumerApiService.sendPersonContactInfoToCIH(
-						HYSTRIX_CMDKEY_CIH_SEND_NEW_PATIENT,
-						HYSTRIX_CMDKEY_CIH_SEND_CONTACT_INFO_PATIENT,
-						URL_CONSUMER_INTEGRATION_GET_PATIENT_CONTACT_INFO_BY_ID,
-						cihIntegrationUri.build().toString(),
-						params);
+
+			if (failureHandler.isEnabled() && failureHandler.isCircuitOpen(HYSTRIX_CMDKEY_CIH_SEND_NEW_PATIENT)) {
+				failureHandler.deferWhileCircuitOpen(amqpMessage, HYSTRIX_CMDKEY_CIH_SEND_NEW_PATIENT);
+				outcome = PatientListenerMetrics.OUTCOME_DEFERRED;
+				return;
 			}
-			
-			if (type != null && Constants.Patient.TYPE_GNRINT.equals(type)) {
-				sendMessageToCih(event, type, mapMessage, params);
+
+			if (tenantScheduler.isEnabled()) {
+				Timer.Sample schedulingSample = metrics.start();
+				permit = tenantScheduler.acquire(patientEvent.getOrganizationId(), laneOf(patientEvent));
+				metrics.recordStage(schedulingSample, PatientListenerMetrics.STAGE_SCHEDULING, patientEvent);
 			}
-			
+
+			params.put(Constants.Patient.PATIENT_ID, patientId);
+
+			String organizationId = patientEvent.getOrganizationId();
+            if(routing.requires(Enrichment.CONFIGURATION_VALUE) && StringUtils.isNotEmpty(organizationId)) {
+            	Timer.Sample configSample = metrics.start();
+            	try {
+            		params.put(Constants.Patient.CONFIGURATION_VALUE, configurationValueCache.getValue(
+            				HYSTRIX_CMDKEY_CONFIGURATION_GET_VALUE_CONFIGURATIONS, SECTION_CIH_INTEGRATION,
+            				SUB_SECTION_HIE_GENERAL_INT, NAME_ID_NUMBER_TYPE, Long.valueOf(organizationId)));
+            	} finally {
+            		metrics.recordStage(configSample, PatientListenerMetrics.STAGE_CONFIG_LOOKUP, patientEvent);
+            	}
+            }
+            
+			ApiGatewayContextUtil.getContext().getHeaders().put(Constants.Patient.REVOKE_CONSENT, patientEvent.getRevokeConsent());
+			ApiGatewayContextUtil.getContext().getHeaders().put(Constants.Patient.REVOKE_SENSITIVE_CONSENT, patientEvent.getRevokeSensitiveConsent());
+
+			List<PatientMessageHandler> handlers = routing.getHandlers();
+			for (int i = completedHandlers; i < handlers.size(); i++) {
+				handlers.get(i).handle(context);
+				completedHandlers = i + 1;
+			}
+			outcome = PatientListenerMetrics.OUTCOME_SUCCESS;
 			
 		} catch (BusinessException e) {
-			LOGGER.error(e.getMessage(), e);
+			metrics.recordError(e, patientEvent);
+			handleFailure(amqpMessage, e, completedHandlers);
 		} catch (JsonProcessingException e) {
+			metrics.recordError(e, patientEvent);
+			handleFailure(amqpMessage, e, completedHandlers);
+		} catch (RuntimeException e) {
+			metrics.recordError(e, patientEvent);
+			if (!failureHandler.isEnabled()) {
+				throw e;
+			}
+			failureHandler.handle(amqpMessage, e, completedHandlers);
+		} catch (InterruptedException e) {
+			// container shutdown while waiting for a permit, let the message be requeued
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for a scheduling permit", e);
+		} finally {
+			if (permit != null) {
+				permit.close();
+			}
+			metrics.recordMessage(messageSample, outcome, patientEvent);
+			MDC.remove(MDC_CORRELATION_ID);
+		}
+	}
+
+	/**
+	 * Decoded body of the delivery. super.onMessage publishes it through the inherited mapMessage
+	 * field, which every consumer thread shares, so it is copied while holding the lock; everything
+	 * after this point only touches the per-delivery context.
+	 */
+	Map<String, Object> receive(Object message, Map<String, Object> headers) {
+		synchronized (this) {
+			super.onMessage(message, headers);
+			return mapMessage != null ? new HashMap<String, Object>(mapMessage) : new HashMap<String, Object>();
+		}
+	}
+
+	/** Bulk CCDA work yields to ADT and the other real-time messages. */
+	private static TenantScheduler.Lane laneOf(PatientEvent patientEvent) {
+		return Constants.Patient.TYPE_CCDA.equals(patientEvent.getType()) ? TenantScheduler.Lane.BULK
+				: TenantScheduler.Lane.PRIORITY;
+	}
+
+	/**
+	 * Hands the failure to the retry / dead-letter handling when it is enabled,
+	 * otherwise only logs it as before.
+	 */
+	private void handleFailure(Message amqpMessage, Exception e, int completedHandlers) {
+		if (failureHandler.isEnabled()) {
+			failureHandler.handle(amqpMessage, e, completedHandlers);
+		} else {
 			LOGGER.error(e.getMessage(), e);
 		}
 	}
 
-	private Map<String, Object> getParametersPayload(String payload) {
-	
-		ObjectMapper jsonObjectMapper = new ObjectMapper();
-		Map<String, Object> payloadArray = null;
-		try {
-			if (payload !=null && !payload.equals("")  && !payload.isEmpty()) {
-			   payloadArray=jsonObjectMapper.readValue(payload, Map.class);
+	/**
+	 * Correlation id of the delivery for the log MDC: the AMQP correlation id or message id when the
+	 * publisher set one, otherwise a node-local sequence. Spring AMQP 1.x maps the correlation id as
+	 * a byte array, later versions as a String.
+	 */
+	private String correlationId(Map<String, Object> headers) {
+		if (headers != null) {
+			String id = headerText(headers.get(AmqpHeaders.CORRELATION_ID));
+			if (id == null) {
+				id = headerText(headers.get(AmqpHeaders.MESSAGE_ID));
+			}
+			if (id != null) {
+				return id;
 			}
-		} catch (JsonParseException e) {
-			LOGGER.error(e.getMessage(), e);
-		} catch (JsonMappingException e) {
-			LOGGER.error(e.getMessage(), e);
-		} catch (IOException e) {
-			LOGGER.error(e.getMessage(), e);
 		}
-		return payloadArray;
+		return "patient-" + Long.toString(correlationSequence.incrementAndGet(), 36);
 	}
 
-	private void sendMessageToCih(String event, String type, Map<String, Object> payload, Map<String, Object> params)
+	private static String headerText(Object value) {
+		if (value instanceof byte[]) {
+			byte[] bytes = (byte[]) value;
+			return bytes.length > 0 ? new String(bytes, StandardCharsets.UTF_8) : null;
+		}
+		return value != null ? value.toString() : null;
+	}
+
+	/** One in {@code log.sample-rate} messages gets the INFO summary line; errors are always logged. */
+	private boolean isSampled() {
+		return logSampleRate <= 1 || sampleCounter.incrementAndGet() % logSampleRate == 0;
+	}
+
+	private void sendMessageToCih(PatientMessageContext context)
 			throws BusinessException, JsonProcessingException {
-		Map<String, Object> payloadArray = getParametersPayload(MapUtils.getString(mapMessage, Constants.Patient.PAYLOAD));
-		UriComponentsBuilder cihIntegrationUri = UriComponentsBuilder.fromUriString(URL_CIH_INTEGRATION)
-				.queryParam(Constants.Patient.ENTITY, MapUtils.getString(payload, Constants.Patient.ENTITY))
-				.queryParam(Constants.Patient.OPERATION, MapUtils.getString(payload, Constants.Patient.OPERATION))
-				.queryParam(Constants.Patient.EVENT, event)
-				.queryParam(Constants.Patient.TYPE, type)
-				.queryParam(Constants.Patient.ORGANIZATION, MapUtils.getString(payload, Constants.Patient.ORGANIZATION))
-				.queryParam(Constants.Patient.CLIENT_PROGRAM_ID, MapUtils.getString(payloadArray, Constants.Patient.CLIENT_PROGRAM_ID))
-				.queryParam(Constants.Patient.ACTIVITY_DETAIL_ID, MapUtils.getString(payloadArray, Constants.Patient.ACTIVITY_DETAIL_ID))
-				.queryParam(Constants.Patient.ACTIVITY_LOG_ID, MapUtils.getString(payloadArray, Constants.Patient.ACTIVITY_LOG_ID))
-				.queryParam(Constants.Patient.CLIENT_EPISODE_ID, MapUtils.getString(payloadArray, Constants.Patient.CLIENT_EPISODE_ID))
-				.queryParam(Constants.Patient.PROGRAM_ID, MapUtils.getString(payloadArray, Constants.Patient.PROGRAM_ID))
-				.queryParam(Constants.Patient.PROGRAM_NAME, MapUtils.getString(payloadArray, Constants.Patient.PROGRAM_NAME));
-
-		Map<String, Object> cihRequest = preparedRequest(event, type, payload, params);
-		cihIntegrationUri.queryParam(Constants.Patient.MEASURE_NAME, MapUtils.getString(cihRequest, Constants.Patient.MEASURE_NAME));
+		PatientEvent patientEvent = context.getEvent();
+		PatientEvent.Payload payload = patientEvent.getPayload();
+
+		Map<String, Object> cihRequest = preparedRequest(context);
+		String cihIntegrationUri = cihMeasureTemplate.expand(
+				patientEvent.getEntity(),
+				patientEvent.getOperation(),
+				patientEvent.getEvent(),
+				patientEvent.getType(),
+				patientEvent.getOrganization(),
+				payload.getClientProgramId(),
+				payload.getActivityDetailId(),
+				payload.getActivityLogId(),
+				payload.getClientEpisodeId(),
+				payload.getProgramId(),
+				payload.getProgramName(),
+				MapUtils.getString(cihRequest, Constants.Patient.MEASURE_NAME));
 		
-		consumerApiService.sendMessageToCIH(HYSTRIX_CMDKEY_CIH_SEND_NEW_PATIENT, cihIntegrationUri.build().toString(),
-				cihRequest);
+		Timer.Sample sendSample = metrics.start();
+		try {
+			if (cihBatchSender.isEnabled()) {
+				awaitDelivery(cihBatchSender.submit(HYSTRIX_CMDKEY_CIH_SEND_NEW_PATIENT, patientEvent,
+						cihIntegrationUri, cihRequest));
+			} else {
+				consumerApiService.sendMessageToCIH(HYSTRIX_CMDKEY_CIH_SEND_NEW_PATIENT, cihIntegrationUri,
+						cihRequest);
+			}
+		} finally {
+			metrics.recordStage(sendSample, PatientListenerMetrics.STAGE_CIH_SEND, patientEvent);
+		}
 
 	}
 
-    private Map<String, Object> preparedRequest(String event, String type, Map<String, Object> payload,
-            Map<String, Object> params) {
+    private Map<String, Object> preparedRequest(PatientMessageContext context) {
+
+        PatientEvent patientEvent = context.getEvent();
+        Map<String, Object> params = context.getParams();
 
-        if (StringUtils.isNotEmpty(event) && !ObjectUtils.isEmpty(payload)) {
+        if (StringUtils.isNotEmpty(patientEvent.getEvent())) {
 
-            Map<String, Object> patientInfo = getClientInformation(event, payload, params);
+            // the routing is memoized, this is a map lookup
+            Long genealogyOrganizationId = router.route(patientEvent.getType(), patientEvent.getEvent())
+                    .requires(Enrichment.GENEALOGY) ? patientEvent.getOrganizationIdValue() : null;
+            CompletableFuture<List<String>> genealogyLookup = null;
+            if (genealogyOrganizationId != null && pipelineExecutor != null) {
+                genealogyLookup = startGenealogyLookup(genealogyOrganizationId, patientEvent);
+            }
+
+            Map<String, Object> patientInfo;
+            Timer.Sample fetchSample = metrics.start();
+            try {
+                patientInfo = getClientInformation(context);
+            } finally {
+                metrics.recordStage(fetchSample, PatientListenerMetrics.STAGE_PATIENT_FETCH, patientEvent);
+            }
             params.putAll(patientInfo);
-            params.put(Constants.Patient.ORGANIZATION_ID,
-                    MapUtils.getString(payload, Constants.Patient.ORGANIZATION_ID));
-            params.put(Constants.Patient.ORGANIZATION, MapUtils.getString(payload, Constants.Patient.ORGANIZATION));
-            params.put(Constants.Patient.APPOINTMENT_STATUS,
-                    MapUtils.getString(mapMessage, Constants.Patient.APPOINTMENT_STATUS));
-
-            Map<String, Object> payloadArray = getParametersPayload(
-                    MapUtils.getString(payload, Constants.Patient.PAYLOAD));
-            params.put(Constants.Patient.APPT_ORGANIZATION_ID,
-                    MapUtils.getString(payloadArray, Constants.Patient.APPT_ORGANIZATION_ID));
-
-            Long organizationId = MapUtils.getLong(payload, Constants.Patient.ORGANIZATION_ID);
-            if (organizationId != null) {
-                List<String> genealogyOrganizationList = getGenealogyOrganization(organizationId);
-                params.put(Constants.Patient.GENEALOGY_ORGANIZATION, genealogyOrganizationList);
+            params.put(Constants.Patient.ORGANIZATION_ID, patientEvent.getOrganizationId());
+            params.put(Constants.Patient.ORGANIZATION, patientEvent.getOrganization());
+            params.put(Constants.Patient.APPOINTMENT_STATUS, patientEvent.getAppointmentStatus());
+            params.put(Constants.Patient.APPT_ORGANIZATION_ID, patientEvent.getPayload().getApptOrganizationId());
+
+            if (genealogyLookup != null) {
+                params.put(Constants.Patient.GENEALOGY_ORGANIZATION, join(genealogyLookup));
+            } else if (genealogyOrganizationId != null) {
+                params.put(Constants.Patient.GENEALOGY_ORGANIZATION, timedGenealogy(genealogyOrganizationId, patientEvent));
             }
 
-            params = getExclusions(params, payload);
+            params = getExclusions(params, patientEvent);
 
         }
 
         return params;
     }
 	
-	private List<String> getGenealogyOrganization(Long organizationId) {
+	private void sendPatientToCih(PatientMessageContext context) throws BusinessException {
+		PatientEvent patientEvent = context.getEvent();
+		PatientEvent.Payload payload = patientEvent.getPayload();
+		Map<String, Object> params = context.getParams();
 
-		Map<String,Object> params = new HashMap<String,Object>();
-		params.put(Constants.Param.ORGANIZATION_ID, organizationId);
+		params.put(Constants.Patient.APPOINTMENT_STATUS, patientEvent.getAppointmentStatus());
+        String consumerUri = adtConsumerTemplate.expand(
+                patientEvent.getClientProgramId(),
+                patientEvent.getAppointmentId(),
+                patientEvent.getOrganizationId(),
+                patientEvent.getExtractPeriod(),
+                patientEvent.getClientProgramBeginDate(),
+                patientEvent.getDischargeDate(),
+                patientEvent.getEvent(),
+                patientEvent.getDiagnosisDocumentId(),
+                patientEvent.getStaffId(),
+                payload.getClientEpisodeId(),
+                payload.getActivityId(),
+                payload.getApptOrganizationId(),
+                params.get(Constants.Patient.CONFIGURATION_VALUE),
+                NAME_ID_NUMBER_TYPE,
+                patientEvent.getModConsentConfigIdValue(),
+                payload.getDischargeDispositionId(),
+                payload.getDischargeLocationId());
 		
-		List<String> genealogyOrganizationList = new ArrayList<>();
-		Organization organization = configurationApiService.exchangeForResponseEntity(
-				HYSTRIX_CMDKEY_CONFIGURATION_GET_ORGANIZATION, URL_CONFIGURATION_GET_ORGANIZATION_GENEALOGY,
-				Organization.class, null, HttpMethod.GET, params);
+		//TODO: change hystrix cmdkey cih to a generic one and not by domain (patient)
+		LOGGER.debug("before sendPatientToCIH - params:: {}", params);
+		Timer.Sample sendSample = metrics.start();
+		try {
+			consumerApiService.sendPatientToCIH(
+					HYSTRIX_CMDKEY_CONSUMER_GET_PATIENT,
+					consumerUri,
+					HYSTRIX_CMDKEY_CIH_SEND_NEW_PATIENT,
+					cihIntegrationUri(patientEvent),
+					params);
+		} finally {
+			metrics.recordStage(sendSample, PatientListenerMetrics.STAGE_CIH_SEND, patientEvent);
+		}
+	}
+
+	private void sendCCDAToCih(PatientMessageContext context) throws BusinessException {
+		PatientEvent patientEvent = context.getEvent();
+		PatientEvent.Payload payload = patientEvent.getPayload();
+		Map<String, Object> params = context.getParams();
+
+		params.put(Constants.Patient.EXTRACT_PERIOD, patientEvent.getExtractPeriod());
+		params.put(Constants.Patient.ORGANIZATION_ID, patientEvent.getOrganizationId());
+		params.put(Constants.Patient.EXCLUSIONS, patientEvent.getExclusions());
+		params.put(Constants.Patient.ORGANIZATION, patientEvent.getOrganization());
+		params.put(Constants.Patient.EVENT, patientEvent.getEvent());
 		
-		if (!ObjectUtils.isEmpty(organization)) {
-			genealogyOrganizationList.add(String.valueOf(organization.getId()));
-			Organization organizationParent = organization.getParent();
-			while (organizationParent != null) {
-				genealogyOrganizationList.add(String.valueOf(organizationParent.getId()));
-				organizationParent = organizationParent.getParent();
-			}
+		LOGGER.debug("before sendCCDAToCIH - params:: {}", params);
+
+        String consumerUri = ccdaConsumerTemplate.expand(
+                patientEvent.getClientProgramId(),
+                patientEvent.getAppointmentId(),
+                patientEvent.getOrganizationId(),
+                patientEvent.getExtractPeriod(),
+                patientEvent.getClientProgramBeginDate(),
+                patientEvent.getDischargeDate(),
+                patientEvent.getStaffId(),
+                payload.getClientEpisodeId(),
+                payload.getActivityId(),
+                payload.getApptOrganizationId(),
+                patientEvent.getModConsentConfigIdValue(),
+                payload.getDischargeDispositionId(),
+                payload.getDischargeLocationId());
+
+		Timer.Sample sendSample = metrics.start();
+		try {
+			consumerApiService.sendCCDAToCIH(
+					HYSTRIX_CMDKEY_CONSUMER_GET_PATIENT,
+					consumerUri,
+					HYSTRIX_CMDKEY_CIH_SEND_NEW_PATIENT,
+					cihIntegrationUri(patientEvent),
+					params);
+		} finally {
+			metrics.recordStage(sendSample, PatientListenerMetrics.STAGE_CIH_SEND, patientEvent);
 		}
+	}
+
+	private void sendPersonContactInfoToCih(PatientMessageContext context) throws BusinessException {
+		PatientEvent patientEvent = context.getEvent();
+		Map<String, Object> params = context.getParams();
+
+		String cihIntegrationUri = myStrengthTemplate.expand(
+				patientEvent.getEntity(),
+				patientEvent.getOperation(),
+				patientEvent.getEvent(),
+				patientEvent.getType(),
+				patientEvent.getOrganization());
 		
-		return genealogyOrganizationList;
+		params.put(Constants.Patient.CLINICIAN_ID, patientEvent.getClinicianId());
+		params.put(Constants.Patient.ORGANIZATION_ACCESS_CODE, patientEvent.getOrganizationAccessCode());
+		params.put(Constants.Patient.ORGANIZATION_LOGIN, patientEvent.getOrganizationLogin());
+		params.put(Constants.Patient.ORGANIZATION_PASSWORD, patientEvent.getOrganizationPassword());
+		params.put(Constants.Patient.ORGANIZATION_SECRET_CODE, patientEvent.getOrganizationSecretCode());
+		Timer.Sample sendSample = metrics.start();
+		try {
+			consumerApiService.sendPersonContactInfoToCIH(
+					HYSTRIX_CMDKEY_CIH_SEND_NEW_PATIENT,
+					HYSTRIX_CMDKEY_CIH_SEND_CONTACT_INFO_PATIENT,
+					URL_CONSUMER_INTEGRATION_GET_PATIENT_CONTACT_INFO_BY_ID,
+					cihIntegrationUri,
+					params);
+		} finally {
+			metrics.recordStage(sendSample, PatientListenerMetrics.STAGE_CIH_SEND, patientEvent);
+		}
+	}
+
+	private String cihIntegrationUri(PatientEvent patientEvent) {
+		PatientEvent.Payload payload = patientEvent.getPayload();
+		return cihIntegrationTemplate.expand(
+				patientEvent.getEntity(),
+				patientEvent.getOperation(),
+				patientEvent.getEvent(),
+				patientEvent.getType(),
+				patientEvent.getOrganization(),
+				payload.getClientProgramId(),
+				payload.getActivityDetailId(),
+				payload.getActivityLogId(),
+				payload.getClientEpisodeId(),
+				payload.getProgramId(),
+				payload.getProgramName());
+	}
+
+	/** Waits for a batched CIH delivery and surfaces its failure like the direct call would. */
+	private static void awaitDelivery(CompletableFuture<Void> delivery) throws BusinessException, JsonProcessingException {
+		try {
+			delivery.join();
+		} catch (CompletionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof BusinessException) {
+				throw (BusinessException) cause;
+			}
+			if (cause instanceof JsonProcessingException) {
+				throw (JsonProcessingException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Pipeline mode: looks the genealogy up on the pipeline executor while the consumer thread fetches
+	 * the patient information; the two calls do not depend on each other. The worker runs with the
+	 * consent headers and MDC of the message. Returns {@code null} when the executor is saturated, in
+	 * which case the consumer thread looks the genealogy up itself afterwards.
+	 */
+	private CompletableFuture<List<String>> startGenealogyLookup(final Long organizationId,
+			final PatientEvent patientEvent) {
+		final CompletableFuture<List<String>> lookup = new CompletableFuture<List<String>>();
+		try {
+			pipelineExecutor.execute(ContextSnapshot.capture().wrap(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						lookup.complete(timedGenealogy(organizationId, patientEvent));
+					} catch (RuntimeException e) {
+						lookup.completeExceptionally(e);
+					}
+				}
+			}));
+		} catch (RejectedExecutionException e) {
+			return null;
+		}
+		return lookup;
 	}
 
-	private Map<String, Object> getClientInformation(String event, Map<String, Object> payload, Map<String, Object> params) {
-		if (Constants.Patient.EVENT_SIGN_CANS.equals(event)) {
-			UriComponentsBuilder uriBuilder = UriComponentsBuilder.fromUriString(URL_CONSUMER_INTEGRATION_GET_PATIENT_CANS)
-					.queryParam(Constants.Patient.DOCUMENT_ID, MapUtils.getString(payload, Constants.Patient.DOCUMENT_ID));
+	/** Waits for a pipeline lookup, rethrowing its failure as if the call had been made inline. */
+	private static <T> T join(CompletableFuture<T> lookup) {
+		try {
+			return lookup.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw e;
+		}
+	}
+
+	private List<String> timedGenealogy(Long organizationId, PatientEvent patientEvent) {
+		Timer.Sample genealogySample = metrics.start();
+		try {
+			return getGenealogyOrganization(organizationId);
+		} finally {
+			metrics.recordStage(genealogySample, PatientListenerMetrics.STAGE_GENEALOGY, patientEvent);
+		}
+	}
+
+	private List<String> getGenealogyOrganization(Long organizationId) {
+		return organizationGenealogyIndex.getGenealogy(HYSTRIX_CMDKEY_CONFIGURATION_GET_ORGANIZATION,
+				URL_CONFIGURATION_GET_ORGANIZATION_GENEALOGY, organizationId);
+	}
+
+	private Map<String, Object> getClientInformation(PatientMessageContext context) {
+		PatientEvent patientEvent = context.getEvent();
+		Map<String, Object> params = context.getParams();
+		if (Constants.Patient.EVENT_SIGN_CANS.equals(patientEvent.getEvent())) {
 			Map<String, Object> patientInfo = consumerApiService.getPatientInfo(HYSTRIX_CMDKEY_CONSUMER_GET_PATIENT,
-					uriBuilder.build().toString(), params);
+					cansConsumerTemplate.expand(patientEvent.getDocumentId()), params);
 			return patientInfo;
 		} else {
-		    Map<String, Object> payloadArray = getParametersPayload(
-		            MapUtils.getString(payload, Constants.Patient.PAYLOAD));
-            String appointmentId = MapUtils.getString(payload, Constants.Patient.APPOINTMENT_ID);
+		    PatientEvent.Payload payload = patientEvent.getPayload();
+            String appointmentId = patientEvent.getAppointmentId();
 
             if (StringUtils.isEmpty(appointmentId)) {
-                appointmentId = MapUtils.getString(payloadArray, Constants.Patient.ACTIVITY_LOG_ID);
+                appointmentId = payload.getActivityLogId();
             }
             
-            UriComponentsBuilder uriBuilder = UriComponentsBuilder
-                    .fromUriString(URL_CONSUMER_INTEGRATION_GET_PATIENT_BY_ID)
-                    .queryParam(Constants.Patient.CLIENT_PROGRAM_ID,
-                            MapUtils.getString(payload, Constants.Patient.CLIENT_PROGRAM_ID))
-                    .queryParam(Constants.Patient.APPOINTMENT_ID, appointmentId)
-                    .queryParam(Constants.Patient.ORGANIZATION_ID,
-                            MapUtils.getString(payload, Constants.Patient.ORGANIZATION_ID))
-                    .queryParam(Constants.Patient.EXTRACT_PERIOD,
-                            MapUtils.getString(payload, Constants.Patient.EXTRACT_PERIOD))
-                    .queryParam(Constants.Patient.CLIENT_PROGRAM_BEGIN_DATE,
-                            MapUtils.getString(payload, Constants.Patient.CLIENT_PROGRAM_BEGIN_DATE))
-                    .queryParam(Constants.Patient.DISCHARGE_DATE,
-                            MapUtils.getString(payload, Constants.Patient.DISCHARGE_DATE))
-                    .queryParam(Constants.Patient.STAFF_ID, MapUtils.getString(payload, Constants.Patient.STAFF_ID))
-                    .queryParam(Constants.Patient.CLIENT_EPISODE_ID,
-                            MapUtils.getLong(payloadArray, Constants.Patient.CLIENT_EPISODE_ID))
-                    .queryParam(Constants.Patient.ACTIVITY_ID,
-                            MapUtils.getLong(payloadArray, Constants.Patient.ACTIVITY_ID))
-                    .queryParam(Constants.Patient.APPT_ORGANIZATION_ID,
-                            MapUtils.getLong(payloadArray, Constants.Patient.APPT_ORGANIZATION_ID))
-                    .queryParam(Constants.Patient.DOCUMENT_ID,
-                            MapUtils.getString(payload, Constants.Patient.DOCUMENT_ID))
-                    .queryParam(Constants.Patient.DESCRIPTOR_NAME,
-                    		(String)params.get(Constants.Patient.CONFIGURATION_VALUE))
-                    .queryParam(Constants.Patient.DESCRIPTOR_TYPE,
-            		        NAME_ID_NUMBER_TYPE)
-                    .queryParam(Constants.Patient.MOD_CONSENT_CONFIG_ID, MapUtils.getString(payload, Constants.Patient.MOD_CONSENT_CONFIG_ID))
-                    .queryParam(Constants.Patient.DISCHARGE_DISPOSITION_ID, MapUtils.getLong(payloadArray, Constants.Patient.DISCHARGE_DISPOSITION_ID))
-                    .queryParam(Constants.Patient.DISCHARGE_LOCATION_ID, MapUtils.getLong(payloadArray, Constants.Patient.DISCHARGE_LOCATION_ID));
-            
+            String consumerUri = gnrintConsumerTemplate.expand(
+                    patientEvent.getClientProgramId(),
+                    appointmentId,
+                    patientEvent.getOrganizationId(),
+                    patientEvent.getExtractPeriod(),
+                    patientEvent.getClientProgramBeginDate(),
+                    patientEvent.getDischargeDate(),
+                    patientEvent.getStaffId(),
+                    payload.getClientEpisodeIdValue(),
+                    payload.getActivityIdValue(),
+                    payload.getApptOrganizationIdValue(),
+                    patientEvent.getDocumentId(),
+                    params.get(Constants.Patient.CONFIGURATION_VALUE),
+                    NAME_ID_NUMBER_TYPE,
+                    patientEvent.getModConsentConfigId(),
+                    payload.getDischargeDispositionId(),
+                    payload.getDischargeLocationId());
 
 			Map<String, Object> patientInfo = consumerApiService.getPatientInfo(HYSTRIX_CMDKEY_CONSUMER_GET_PATIENT,
-					uriBuilder.build().toString(), params);
+					consumerUri, params);
 			return patientInfo;
 		}
 	}
 	
-	@SuppressWarnings("unchecked")
-	public Map<String, Object> getExclusions(Map<String, Object> params, Map<String, Object> payload) {
+	public Map<String, Object> getExclusions(Map<String, Object> params, PatientEvent patientEvent) {
 		
 		params.put(Constants.Patient.REQUEST_DATE, LocalDate.now().toString());
 		
-		Integer extrationPeriod = MapUtils.getInteger(payload, Constants.Patient.EXTRACT_PERIOD_GEN);
+		Integer extrationPeriod = patientEvent.getExtractPeriodGen();
 		if (extrationPeriod!=null) {
 			params.put(Constants.Patient.CCDA_BEGIN_DATE, LocalDate.now().minusMonths(extrationPeriod).toString());
 			params.put(Constants.Patient.CCDA_END_DATE, LocalDate.now().toString());
 		}
 		
-		String exclusions = MapUtils.getString(payload, Constants.Patient.EXCLUSIONS);
+		String exclusions = patientEvent.getExclusions();
 		if (StringUtils.isNotEmpty(exclusions)) {
 			LOGGER.debug("::: GetExclusions exclusions = {} :::", exclusions);
-		
-			ObjectMapper jsonObjectMapper = new ObjectMapper();
-			Map<String, Object> exclusionsArray = null;
-			
-			try {
-				exclusionsArray = jsonObjectMapper.readValue(exclusions, Map.class);
-			} catch (IOException e) {
-				LOGGER.error(e.getMessage(), e);
-			}
 			
-			if (!ObjectUtils.isEmpty(exclusionsArray)) {
+			if (patientEvent.hasExclusions()) {
 				params.put(Constants.Patient.HAS_EXCLUSIONS, true);
-				params.put(Constants.Patient.EXCLUSIONS, exclusionsArray.get(Constants.Patient.EXCLUSIONS_ARRAY));
+				params.put(Constants.Patient.EXCLUSIONS, patientEvent.getExclusionsArray());
 			}else {
 				params.put(Constants.Patient.HAS_EXCLUSIONS, false);
 			}
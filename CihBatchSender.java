@@ -0,0 +1,256 @@
+package com.qualifacts.carelogic.gateway.queue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.collections.MapUtils;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.qualifacts.carelogic.common.exception.BusinessException;
+import com.qualifacts.carelogic.gateway.service.ConsumerApiService;
+import com.qualifacts.carelogic.gateway.service.util.Constants;
+
+/**
+ * Optional micro-batching of the requests the patient listener posts to CIH.
+ * Requests are grouped by organization, type and event and sent as one bulk
+ * call at {@code max-size} items or after {@code max-wait-ms}; each request's
+ * future completes from its own entry of the bulk response.
+ */
+@Component
+public class CihBatchSender {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(CihBatchSender.class);
+
+	private static final String BULK_MESSAGES = "messages";
+	private static final String BULK_URI = "uri";
+	private static final String BULK_REQUEST = "request";
+	private static final String BULK_RESULTS = "results";
+	private static final String BULK_SUCCESS = "success";
+	private static final String BULK_ERROR = "error";
+
+	@Autowired
+	private ConsumerApiService consumerApiService;
+
+	@Autowired
+	private TenantScheduler tenantScheduler;
+
+	@Value("${api.gateway.patient.cih-batch.enabled:false}")
+	private boolean enabled;
+
+	@Value("${api.gateway.patient.cih-batch.url:}")
+	private String bulkUrl;
+
+	@Value("${api.gateway.patient.cih-batch.max-size:50}")
+	private int maxSize;
+
+	@Value("${api.gateway.patient.cih-batch.max-wait-ms:200}")
+	private long maxWaitMillis;
+
+	// required: the listener container concurrency; bounds max-size and triggers the saturation flush
+	@Value("${api.gateway.patient.cih-batch.consumers:0}")
+	private int consumers;
+
+	@Value("${api.gateway.patient.cih-batch.flush-threads:4}")
+	private int flushThreads;
+
+	private final Map<String, Batch> openBatches = new ConcurrentHashMap<String, Batch>();
+	private final AtomicInteger pending = new AtomicInteger();
+
+	// submitters that can be blocked on a batch at once
+	private int saturation;
+
+	private ScheduledExecutorService flushTimer;
+	private ExecutorService flushExecutor;
+
+	@PostConstruct
+	public void init() {
+		if (!isEnabled()) {
+			return;
+		}
+		if (consumers <= 0) {
+			throw new IllegalStateException(
+					"api.gateway.patient.cih-batch.consumers must be set to the patient listener concurrency");
+		}
+		// with scheduling on, only the consumers holding a permit can reach submit
+		saturation = tenantScheduler.isEnabled() ? Math.min(consumers, tenantScheduler.getMaxConcurrency()) : consumers;
+		if (maxSize > saturation) {
+			LOGGER.warn("cih-batch max-size {} is above the {} messages that can fill a batch at once, using {}", maxSize,
+					saturation, saturation);
+			maxSize = saturation;
+		}
+		flushTimer = Executors.newSingleThreadScheduledExecutor(daemonThreads("cih-batch-timer"));
+		flushExecutor = Executors.newFixedThreadPool(flushThreads, daemonThreads("cih-batch-flush"));
+	}
+
+	@PreDestroy
+	public void destroy() {
+		if (flushTimer != null) {
+			flushTimer.shutdownNow();
+			flushOpenBatches();
+			flushExecutor.shutdown();
+		}
+	}
+
+	/** Batching only applies when it is switched on and a bulk endpoint is configured. */
+	public boolean isEnabled() {
+		return enabled && StringUtils.isNotEmpty(bulkUrl);
+	}
+
+	/**
+	 * Queues a CIH request. The returned future completes when the bulk call
+	 * carrying it accepted it, or exceptionally with the failure of that item
+	 * or of the whole call.
+	 */
+	public CompletableFuture<Void> submit(String hystrixCommandKey, PatientEvent patientEvent, String uri,
+			Map<String, Object> request) {
+		Map<String, Object> item = new HashMap<String, Object>();
+		item.put(BULK_URI, uri);
+		item.put(BULK_REQUEST, request);
+		item.put(Constants.Patient.REVOKE_CONSENT, patientEvent.getRevokeConsent());
+		item.put(Constants.Patient.REVOKE_SENSITIVE_CONSENT, patientEvent.getRevokeSensitiveConsent());
+		CompletableFuture<Void> result = new CompletableFuture<Void>();
+
+		final String key = patientEvent.getOrganizationId() + '|' + patientEvent.getType() + '|' + patientEvent.getEvent();
+		while (true) {
+			Batch batch = openBatches.get(key);
+			if (batch == null) {
+				final Batch created = new Batch(hystrixCommandKey, ContextSnapshot.capture()
+						.without(Constants.Patient.REVOKE_CONSENT, Constants.Patient.REVOKE_SENSITIVE_CONSENT));
+				batch = openBatches.putIfAbsent(key, created);
+				if (batch == null) {
+					batch = created;
+					flushTimer.schedule(new Runnable() {
+						@Override
+						public void run() {
+							scheduleFlush(key, created);
+						}
+					}, maxWaitMillis, TimeUnit.MILLISECONDS);
+				}
+			}
+			boolean full;
+			synchronized (batch) {
+				if (batch.closed) {
+					// flushed between get and lock, start over with a new batch
+					continue;
+				}
+				batch.items.add(item);
+				batch.results.add(result);
+				full = batch.items.size() >= maxSize;
+			}
+			if (pending.incrementAndGet() >= saturation) {
+				// every message that can be in flight is waiting on a batch, nobody else can fill them
+				flushOpenBatches();
+			} else if (full) {
+				scheduleFlush(key, batch);
+			}
+			return result;
+		}
+	}
+
+	private void flushOpenBatches() {
+		for (Map.Entry<String, Batch> open : new ArrayList<Map.Entry<String, Batch>>(openBatches.entrySet())) {
+			scheduleFlush(open.getKey(), open.getValue());
+		}
+	}
+
+	private void scheduleFlush(final String key, final Batch batch) {
+		// the size trigger and the timer race for the same batch, only the one removing it sends it
+		if (!openBatches.remove(key, batch)) {
+			return;
+		}
+		synchronized (batch) {
+			batch.closed = true;
+		}
+		pending.addAndGet(-batch.items.size());
+		Runnable flush = batch.context.wrap(new Runnable() {
+			@Override
+			public void run() {
+				flush(key, batch);
+			}
+		});
+		try {
+			flushExecutor.execute(flush);
+		} catch (RejectedExecutionException e) {
+			// shutting down
+			flush.run();
+		}
+	}
+
+	private void flush(String key, Batch batch) {
+		Map<String, Object> bulkRequest = new HashMap<String, Object>();
+		bulkRequest.put(BULK_MESSAGES, batch.items);
+		Map<String, Object> response;
+		try {
+			response = consumerApiService.sendMessagesToCIH(batch.hystrixCommandKey, bulkUrl, bulkRequest);
+		} catch (BusinessException | JsonProcessingException | RuntimeException e) {
+			LOGGER.error("Bulk CIH delivery of {} requests for {} failed", batch.items.size(), key, e);
+			for (CompletableFuture<Void> result : batch.results) {
+				result.completeExceptionally(e);
+			}
+			return;
+		}
+
+		Object results = response != null ? response.get(BULK_RESULTS) : null;
+		List<?> itemResults = results instanceof List ? (List<?>) results : Collections.emptyList();
+		for (int i = 0; i < batch.results.size(); i++) {
+			Object itemResult = i < itemResults.size() ? itemResults.get(i) : null;
+			CompletableFuture<Void> result = batch.results.get(i);
+			if (!(itemResult instanceof Map)) {
+				result.completeExceptionally(new IllegalStateException("No result for item " + i + " of the bulk CIH call for " + key));
+			} else if (MapUtils.getBooleanValue((Map<?, ?>) itemResult, BULK_SUCCESS)) {
+				result.complete(null);
+			} else {
+				result.completeExceptionally(new BusinessException(
+						"CIH rejected the request: " + MapUtils.getString((Map<?, ?>) itemResult, BULK_ERROR)));
+			}
+		}
+	}
+
+	private static ThreadFactory daemonThreads(final String name) {
+		return new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+	private static final class Batch {
+
+		private final String hystrixCommandKey;
+		private final ContextSnapshot context;
+		private final List<Map<String, Object>> items = new ArrayList<Map<String, Object>>();
+		private final List<CompletableFuture<Void>> results = new ArrayList<CompletableFuture<Void>>();
+		private boolean closed;
+
+		private Batch(String hystrixCommandKey, ContextSnapshot context) {
+			this.hystrixCommandKey = hystrixCommandKey;
+			this.context = context;
+		}
+	}
+}
@@ -0,0 +1,226 @@
+package com.qualifacts.carelogic.gateway.queue;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.qualifacts.carelogic.common.response.BaseResponse;
+import com.qualifacts.carelogic.gateway.service.ConfigurationApiService;
+
+/**
+ * Bounded, time-expiring cache in front of
+ * {@link ConfigurationApiService#getConfigurationValue}, keyed by section,
+ * sub-section, name and organization.
+ * <p>
+ * A missing value (an organization without the setting, or a Hystrix
+ * fallback) is cached too, but only for {@code null-ttl-seconds}, so it is
+ * picked up soon once configured without every message paying the round trip.
+ * Concurrent misses of the same key share one remote call.
+ */
+@Component
+public class ConfigurationValueCache {
+
+	@Autowired
+	private ConfigurationApiService configurationApiService;
+
+	@Value("${api.gateway.configuration.cache.ttl-seconds:300}")
+	private long ttlSeconds;
+
+	@Value("${api.gateway.configuration.cache.null-ttl-seconds:30}")
+	private long nullTtlSeconds;
+
+	@Value("${api.gateway.configuration.cache.max-size:1000}")
+	private int maxSize;
+
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+	private final AtomicLong evictionCount = new AtomicLong();
+
+	private long ttlNanos;
+	private long nullTtlNanos;
+	private Map<Key, CachedValue> entries;
+	// remote calls in progress, guarded by synchronized (entries)
+	private final Map<Key, CompletableFuture<String>> loading = new HashMap<Key, CompletableFuture<String>>();
+
+	@PostConstruct
+	public void init() {
+		ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+		nullTtlNanos = TimeUnit.SECONDS.toNanos(Math.min(nullTtlSeconds, ttlSeconds));
+		// access-ordered so the eldest entry is the least recently used one; guarded by synchronized (entries)
+		entries = new LinkedHashMap<Key, CachedValue>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, CachedValue> eldest) {
+				if (size() > maxSize) {
+					evictionCount.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	public String getValue(String hystrixCommandKey, String section, String subSection, String name,
+			Long organizationId) {
+		Key key = new Key(section, subSection, name, organizationId);
+		CompletableFuture<String> pending;
+		boolean loader = false;
+		synchronized (entries) {
+			CachedValue entry = entries.get(key);
+			if (entry != null) {
+				if (entry.expiresAt - System.nanoTime() > 0) {
+					hitCount.incrementAndGet();
+					return entry.value;
+				}
+				entries.remove(key);
+				evictionCount.incrementAndGet();
+			}
+			pending = loading.get(key);
+			if (pending == null) {
+				pending = new CompletableFuture<String>();
+				loading.put(key, pending);
+				loader = true;
+			}
+		}
+		missCount.incrementAndGet();
+		if (!loader) {
+			return await(pending);
+		}
+
+		// remote call is made outside the lock so a slow configuration service never blocks hits
+		try {
+			BaseResponse<String> configValue = configurationApiService.getConfigurationValue(hystrixCommandKey, section,
+					subSection, name, organizationId);
+			String value = configValue.getResponse();
+			synchronized (entries) {
+				entries.put(key, new CachedValue(value, System.nanoTime() + (value != null ? ttlNanos : nullTtlNanos)));
+				loading.remove(key);
+			}
+			pending.complete(value);
+			return value;
+		} catch (RuntimeException e) {
+			synchronized (entries) {
+				loading.remove(key);
+			}
+			pending.completeExceptionally(e);
+			throw e;
+		}
+	}
+
+	private static String await(CompletableFuture<String> pending) {
+		try {
+			return pending.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for a configuration value", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	/** Drops every cached value of the given organization. */
+	public void invalidate(Long organizationId) {
+		synchronized (entries) {
+			Iterator<Key> keys = entries.keySet().iterator();
+			while (keys.hasNext()) {
+				Key key = keys.next();
+				if (key.organizationId == null ? organizationId == null : key.organizationId.equals(organizationId)) {
+					keys.remove();
+				}
+			}
+		}
+	}
+
+	public void invalidateAll() {
+		synchronized (entries) {
+			entries.clear();
+		}
+	}
+
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	public long getEvictionCount() {
+		return evictionCount.get();
+	}
+
+	private static final class CachedValue {
+
+		private final String value;
+		private final long expiresAt;
+
+		private CachedValue(String value, long expiresAt) {
+			this.value = value;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	private static final class Key {
+
+		private final String section;
+		private final String subSection;
+		private final String name;
+		private final Long organizationId;
+		private final int hash;
+
+		private Key(String section, String subSection, String name, Long organizationId) {
+			this.section = section;
+			this.subSection = subSection;
+			this.name = name;
+			this.organizationId = organizationId;
+			int h = section != null ? section.hashCode() : 0;
+			h = 31 * h + (subSection != null ? subSection.hashCode() : 0);
+			h = 31 * h + (name != null ? name.hashCode() : 0);
+			h = 31 * h + (organizationId != null ? organizationId.hashCode() : 0);
+			this.hash = h;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return equal(section, other.section) && equal(subSection, other.subSection) && equal(name, other.name)
+					&& equal(organizationId, other.organizationId);
+		}
+
+		private static boolean equal(Object a, Object b) {
+			return a == null ? b == null : a.equals(b);
+		}
+	}
+}
@@ -0,0 +1,77 @@
+package com.qualifacts.carelogic.gateway.queue;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.slf4j.MDC;
+
+import com.qualifacts.carelogic.gateway.context.ApiGatewayContextUtil;
+
+/**
+ * Copy of the {@link ApiGatewayContextUtil} headers and the log MDC of the
+ * calling thread, applied to a worker thread for the duration of a task so
+ * remote calls made there carry the same headers and their log lines the same
+ * correlation id.
+ */
+public final class ContextSnapshot {
+
+	private static final ContextSnapshot EMPTY = new ContextSnapshot(Collections.<String, String>emptyMap(),
+			Collections.<String, String>emptyMap());
+
+	private final Map<String, String> headers;
+	private final Map<String, String> mdc;
+
+	private ContextSnapshot(Map<String, String> headers, Map<String, String> mdc) {
+		this.headers = headers;
+		this.mdc = mdc;
+	}
+
+	/** Snapshot of the current thread. */
+	public static ContextSnapshot capture() {
+		Map<String, String> mdc = MDC.getCopyOfContextMap();
+		return new ContextSnapshot(new HashMap<String, String>(ApiGatewayContextUtil.getContext().getHeaders()),
+				mdc != null ? mdc : Collections.<String, String>emptyMap());
+	}
+
+	/** Snapshot with no headers and no MDC, for work that belongs to no single message. */
+	public static ContextSnapshot empty() {
+		return EMPTY;
+	}
+
+	/** Same MDC, but without the given context headers. */
+	public ContextSnapshot without(String... headerNames) {
+		Map<String, String> remaining = new HashMap<String, String>(headers);
+		for (String headerName : headerNames) {
+			remaining.remove(headerName);
+		}
+		return new ContextSnapshot(remaining, mdc);
+	}
+
+	/** Runs the task with this snapshot applied, then clears the worker thread again. */
+	public Runnable wrap(final Runnable task) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				apply();
+				try {
+					task.run();
+				} finally {
+					clear();
+				}
+			}
+		};
+	}
+
+	private void apply() {
+		Map<String, String> current = ApiGatewayContextUtil.getContext().getHeaders();
+		current.clear();
+		current.putAll(headers);
+		MDC.setContextMap(mdc);
+	}
+
+	private static void clear() {
+		ApiGatewayContextUtil.getContext().getHeaders().clear();
+		MDC.clear();
+	}
+}
@@ -0,0 +1,276 @@
+package com.qualifacts.carelogic.gateway.queue;
+
+import java.util.AbstractList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpMethod;
+import org.springframework.stereotype.Component;
+import org.springframework.util.ObjectUtils;
+
+import com.qualifacts.carelogic.configuration.model.Organization;
+import com.qualifacts.carelogic.gateway.service.ConfigurationApiService;
+import com.qualifacts.carelogic.gateway.service.util.Constants;
+
+/**
+ * In-memory index of the organization hierarchy used to answer genealogy
+ * (self plus ancestors) queries without a configuration service round trip
+ * per message.
+ * <p>
+ * Organizations are loaded lazily the first time they are asked for; loading
+ * one also indexes all of its ancestors. Entries older than the refresh
+ * interval keep being served while a background thread reloads them. Each
+ * genealogy list is built on top of its parent's list, so organizations under
+ * the same parent share one ancestor chain instead of copying it.
+ * <p>
+ * When the index grows past {@code max-size} the least recently used tenth of
+ * it is evicted. Refreshes run with the context headers and MDC of the message
+ * that found the entry stale; failed ones are counted and the stale chain is
+ * served until a later refresh succeeds.
+ */
+@Component
+public class OrganizationGenealogyIndex {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(OrganizationGenealogyIndex.class);
+
+	@Autowired
+	private ConfigurationApiService configurationApiService;
+
+	@Value("${api.gateway.organization.genealogy.refresh-seconds:600}")
+	private long refreshSeconds;
+
+	@Value("${api.gateway.organization.genealogy.max-size:10000}")
+	private int maxSize;
+
+	private final Map<Long, Node> nodes = new ConcurrentHashMap<Long, Node>();
+	private final Set<Long> refreshing = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+	private final AtomicLong refreshFailureCount = new AtomicLong();
+	private final AtomicLong evictionCount = new AtomicLong();
+
+	private long refreshNanos;
+	private ExecutorService refreshExecutor;
+
+	@PostConstruct
+	public void init() {
+		refreshNanos = TimeUnit.SECONDS.toNanos(refreshSeconds);
+		refreshExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "organization-genealogy-refresh");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	@PreDestroy
+	public void destroy() {
+		refreshExecutor.shutdownNow();
+	}
+
+	/**
+	 * Returns the ids of the organization and all of its ancestors, nearest
+	 * first. The returned list is immutable.
+	 */
+	public List<String> getGenealogy(String hystrixCommandKey, String url, Long organizationId) {
+		Node node = nodes.get(organizationId);
+		if (node == null) {
+			node = load(hystrixCommandKey, url, organizationId);
+			return node != null ? node.genealogy : Collections.<String>emptyList();
+		}
+		long now = System.nanoTime();
+		node.accessedAt = now;
+		if (now - node.loadedAt > refreshNanos) {
+			scheduleRefresh(hystrixCommandKey, url, organizationId);
+		}
+		return node.genealogy;
+	}
+
+	public void invalidate(Long organizationId) {
+		nodes.remove(organizationId);
+	}
+
+	public void invalidateAll() {
+		nodes.clear();
+	}
+
+	public int size() {
+		return nodes.size();
+	}
+
+	public long getRefreshFailureCount() {
+		return refreshFailureCount.get();
+	}
+
+	public long getEvictionCount() {
+		return evictionCount.get();
+	}
+
+	private void scheduleRefresh(final String hystrixCommandKey, final String url, final Long organizationId) {
+		if (!refreshing.add(organizationId)) {
+			return;
+		}
+		refreshExecutor.execute(ContextSnapshot.capture().wrap(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					load(hystrixCommandKey, url, organizationId);
+				} catch (RuntimeException e) {
+					refreshFailureCount.incrementAndGet();
+					LOGGER.warn("Could not refresh genealogy of organization {}, keeping the cached one", organizationId, e);
+				} finally {
+					refreshing.remove(organizationId);
+				}
+			}
+		}));
+	}
+
+	private Node load(String hystrixCommandKey, String url, Long organizationId) {
+		Map<String, Object> params = new HashMap<String, Object>();
+		params.put(Constants.Param.ORGANIZATION_ID, organizationId);
+
+		Organization organization = configurationApiService.exchangeForResponseEntity(hystrixCommandKey, url,
+				Organization.class, null, HttpMethod.GET, params);
+		if (ObjectUtils.isEmpty(organization)) {
+			return null;
+		}
+		Node node = index(organization);
+		nodes.put(organizationId, node);
+		return node;
+	}
+
+	/**
+	 * Indexes the organization and its ancestors root first. An ancestor that is
+	 * already indexed on top of the same chain is reused, which keeps the chain
+	 * shared with the organizations loaded before.
+	 */
+	private Node index(Organization organization) {
+		Deque<Organization> chain = new ArrayDeque<Organization>();
+		for (Organization current = organization; current != null; current = current.getParent()) {
+			chain.push(current);
+		}
+		if (nodes.size() + chain.size() > maxSize) {
+			evictLeastRecentlyUsed(chain.size());
+		}
+
+		long now = System.nanoTime();
+		List<String> parentGenealogy = Collections.emptyList();
+		Node node = null;
+		for (Organization current : chain) {
+			Long id = current.getId();
+			Node existing = id != null ? nodes.get(id) : null;
+			if (existing != null && existing.genealogy.tail == parentGenealogy) {
+				existing.loadedAt = now;
+				node = existing;
+			} else {
+				node = new Node(new Genealogy(String.valueOf(id), parentGenealogy), now);
+				if (id != null) {
+					nodes.put(id, node);
+				}
+			}
+			parentGenealogy = node.genealogy;
+		}
+		return node;
+	}
+
+	/**
+	 * Drops the least recently used entries, a tenth of the index plus room for
+	 * the chain about to be added, so eviction runs rarely. Evicted ancestors
+	 * stay reachable through the chains of their descendants.
+	 */
+	private synchronized void evictLeastRecentlyUsed(int room) {
+		int excess = nodes.size() + room - maxSize;
+		if (excess <= 0) {
+			return;
+		}
+		// consumer threads keep touching accessedAt, so sort a copy of it taken once
+		List<Access> accesses = new ArrayList<Access>(nodes.size());
+		for (Map.Entry<Long, Node> entry : nodes.entrySet()) {
+			accesses.add(new Access(entry.getKey(), entry.getValue()));
+		}
+		Collections.sort(accesses, new Comparator<Access>() {
+			@Override
+			public int compare(Access a, Access b) {
+				return Long.compare(a.accessedAt - b.accessedAt, 0L);
+			}
+		});
+		int evict = Math.min(accesses.size(), excess + maxSize / 10);
+		for (int i = 0; i < evict; i++) {
+			nodes.remove(accesses.get(i).organizationId, accesses.get(i).node);
+		}
+		evictionCount.addAndGet(evict);
+	}
+
+	private static final class Access {
+
+		private final Long organizationId;
+		private final Node node;
+		private final long accessedAt;
+
+		private Access(Long organizationId, Node node) {
+			this.organizationId = organizationId;
+			this.node = node;
+			this.accessedAt = node.accessedAt;
+		}
+	}
+
+	private static final class Node {
+
+		private final Genealogy genealogy;
+		private volatile long loadedAt;
+		private volatile long accessedAt;
+
+		private Node(Genealogy genealogy, long loadedAt) {
+			this.genealogy = genealogy;
+			this.loadedAt = loadedAt;
+			this.accessedAt = loadedAt;
+		}
+	}
+
+	/** Immutable list made of an organization id followed by its parent's genealogy. */
+	private static final class Genealogy extends AbstractList<String> {
+
+		private final String head;
+		private final List<String> tail;
+		private final int size;
+
+		private Genealogy(String head, List<String> tail) {
+			this.head = head;
+			this.tail = tail;
+			this.size = tail.size() + 1;
+		}
+
+		@Override
+		public String get(int index) {
+			if (index < 0 || index >= size) {
+				throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+			}
+			return index == 0 ? head : tail.get(index - 1);
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+	}
+}
@@ -0,0 +1,508 @@
+package com.qualifacts.carelogic.gateway.queue;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.apache.commons.collections.MapUtils;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.util.RawValue;
+import com.qualifacts.carelogic.gateway.service.util.Constants;
+
+/**
+ * Immutable view of a message received on api.gateway.queue.patient.
+ * The nested PAYLOAD JSON string is decoded once, when the event is built, so
+ * the listener branches only read already typed values. EXCLUSIONS is only
+ * scanned on the first {@link #hasExclusions()} or
+ * {@link #getExclusionsArray()} call, which only GNRINT messages make; CCDA
+ * forwards the raw string and never pays for it.
+ * <p>
+ * Both are read token by token: only the keys the listener uses are kept,
+ * everything else is skipped without building a tree, and the
+ * EXCLUSIONS_ARRAY sub-tree is kept as raw JSON that is written through
+ * unchanged when the request is serialized for CIH.
+ */
+public final class PatientEvent {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(PatientEvent.class);
+
+	/** JsonFactory is thread-safe once configured, so one instance serves every message. */
+	private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+	private final String type;
+	private final String event;
+	private final String entity;
+	private final String operation;
+	private final String organization;
+	private final String organizationId;
+	private final Long organizationIdValue;
+	private final String patientId;
+	private final String documentId;
+	private final Long documentIdValue;
+	private final String appointmentId;
+	private final String appointmentStatus;
+	private final String clientProgramId;
+	private final String clientProgramBeginDate;
+	private final String extractPeriod;
+	private final Integer extractPeriodGen;
+	private final String dischargeDate;
+	private final String diagnosisDocumentId;
+	private final String staffId;
+	private final String modConsentConfigId;
+	private final Long modConsentConfigIdValue;
+	private final String revokeConsent;
+	private final String revokeSensitiveConsent;
+	private final String clinicianId;
+	private final String organizationAccessCode;
+	private final String organizationLogin;
+	private final String organizationPassword;
+	private final String organizationSecretCode;
+	private final String exclusions;
+	// scanned lazily; racing threads compute the same value
+	private volatile Exclusions scannedExclusions;
+	private final Payload payload;
+
+	private PatientEvent(Map<String, Object> message) {
+		this.type = MapUtils.getString(message, Constants.Patient.TYPE);
+		this.event = MapUtils.getString(message, Constants.Patient.EVENT);
+		this.entity = MapUtils.getString(message, Constants.Patient.ENTITY);
+		this.operation = MapUtils.getString(message, Constants.Patient.OPERATION);
+		this.organization = MapUtils.getString(message, Constants.Patient.ORGANIZATION);
+		this.organizationId = MapUtils.getString(message, Constants.Patient.ORGANIZATION_ID);
+		this.organizationIdValue = MapUtils.getLong(message, Constants.Patient.ORGANIZATION_ID);
+		this.patientId = MapUtils.getString(message, Constants.Patient.PATIENT_ID);
+		this.documentId = MapUtils.getString(message, Constants.Patient.DOCUMENT_ID);
+		this.documentIdValue = MapUtils.getLong(message, Constants.Patient.DOCUMENT_ID);
+		this.appointmentId = MapUtils.getString(message, Constants.Patient.APPOINTMENT_ID);
+		this.appointmentStatus = MapUtils.getString(message, Constants.Patient.APPOINTMENT_STATUS);
+		this.clientProgramId = MapUtils.getString(message, Constants.Patient.CLIENT_PROGRAM_ID);
+		this.clientProgramBeginDate = MapUtils.getString(message, Constants.Patient.CLIENT_PROGRAM_BEGIN_DATE);
+		this.extractPeriod = MapUtils.getString(message, Constants.Patient.EXTRACT_PERIOD);
+		this.extractPeriodGen = MapUtils.getInteger(message, Constants.Patient.EXTRACT_PERIOD_GEN);
+		this.dischargeDate = MapUtils.getString(message, Constants.Patient.DISCHARGE_DATE);
+		this.diagnosisDocumentId = MapUtils.getString(message, Constants.Patient.DIAGNOSIS_DOCUMENT_ID);
+		this.staffId = MapUtils.getString(message, Constants.Patient.STAFF_ID);
+		this.modConsentConfigId = MapUtils.getString(message, Constants.Patient.MOD_CONSENT_CONFIG_ID);
+		this.modConsentConfigIdValue = MapUtils.getLong(message, Constants.Patient.MOD_CONSENT_CONFIG_ID);
+		this.revokeConsent = MapUtils.getString(message, Constants.Patient.REVOKE_CONSENT);
+		this.revokeSensitiveConsent = MapUtils.getString(message, Constants.Patient.REVOKE_SENSITIVE_CONSENT);
+		this.clinicianId = MapUtils.getString(message, Constants.Patient.CLINICIAN_ID);
+		this.organizationAccessCode = MapUtils.getString(message, Constants.Patient.ORGANIZATION_ACCESS_CODE);
+		this.organizationLogin = MapUtils.getString(message, Constants.Patient.ORGANIZATION_LOGIN);
+		this.organizationPassword = MapUtils.getString(message, Constants.Patient.ORGANIZATION_PASSWORD);
+		this.organizationSecretCode = MapUtils.getString(message, Constants.Patient.ORGANIZATION_SECRET_CODE);
+		this.payload = Payload.read(MapUtils.getString(message, Constants.Patient.PAYLOAD));
+
+		this.exclusions = MapUtils.getString(message, Constants.Patient.EXCLUSIONS);
+	}
+
+	public static PatientEvent from(Map<String, Object> message) {
+		return new PatientEvent(message);
+	}
+
+	/**
+	 * Parser positioned on the START_OBJECT of the given JSON, or {@code null}
+	 * when it is empty or not an object.
+	 */
+	private static JsonParser openObject(String json) throws IOException {
+		if (StringUtils.isEmpty(json)) {
+			return null;
+		}
+		JsonParser parser = JSON_FACTORY.createParser(json);
+		if (parser.nextToken() != JsonToken.START_OBJECT) {
+			parser.close();
+			return null;
+		}
+		return parser;
+	}
+
+	/** Source text of the current value, sub-tree included, without decoding it. */
+	private static RawValue rawValue(JsonParser parser, String json) throws IOException {
+		if (parser.getCurrentToken() == JsonToken.VALUE_NULL) {
+			return null;
+		}
+		int start = (int) parser.getTokenLocation().getCharOffset();
+		if (parser.getCurrentToken().isStructStart()) {
+			parser.skipChildren();
+		} else {
+			parser.finishToken();
+		}
+		int end = (int) parser.getCurrentLocation().getCharOffset();
+		return new RawValue(json.substring(start, end));
+	}
+
+	/** Text of the current scalar value, {@code null} for null and for objects or arrays. */
+	private static String text(JsonParser parser) throws IOException {
+		JsonToken token = parser.getCurrentToken();
+		if (token == JsonToken.VALUE_NULL) {
+			return null;
+		}
+		if (token.isStructStart()) {
+			parser.skipChildren();
+			return null;
+		}
+		return parser.getText();
+	}
+
+	/**
+	 * Whether the current value converts to a long: an integral number in
+	 * range, a decimal (truncated), or a string of digits.
+	 */
+	private static boolean isLong(JsonParser parser) throws IOException {
+		switch (parser.getCurrentToken()) {
+		case VALUE_NUMBER_INT:
+			JsonParser.NumberType numberType = parser.getNumberType();
+			return numberType == JsonParser.NumberType.INT || numberType == JsonParser.NumberType.LONG;
+		case VALUE_NUMBER_FLOAT:
+			return true;
+		case VALUE_STRING:
+			String text = parser.getText().trim();
+			int first = text.startsWith("-") ? 1 : 0;
+			if (text.length() == first || text.length() - first > 18) {
+				return false;
+			}
+			for (int i = first; i < text.length(); i++) {
+				if (!Character.isDigit(text.charAt(i))) {
+					return false;
+				}
+			}
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/** Value of the current token, only valid when {@link #isLong(JsonParser)} is true. */
+	private static long longValue(JsonParser parser) throws IOException {
+		switch (parser.getCurrentToken()) {
+		case VALUE_STRING:
+			return Long.parseLong(parser.getText().trim());
+		case VALUE_NUMBER_FLOAT:
+			return (long) parser.getDoubleValue();
+		default:
+			return parser.getLongValue();
+		}
+	}
+
+	public String getType() {
+		return type;
+	}
+
+	public String getEvent() {
+		return event;
+	}
+
+	public String getEntity() {
+		return entity;
+	}
+
+	public String getOperation() {
+		return operation;
+	}
+
+	public String getOrganization() {
+		return organization;
+	}
+
+	public String getOrganizationId() {
+		return organizationId;
+	}
+
+	public Long getOrganizationIdValue() {
+		return organizationIdValue;
+	}
+
+	public String getPatientId() {
+		return patientId;
+	}
+
+	public String getDocumentId() {
+		return documentId;
+	}
+
+	public Long getDocumentIdValue() {
+		return documentIdValue;
+	}
+
+	public String getAppointmentId() {
+		return appointmentId;
+	}
+
+	public String getAppointmentStatus() {
+		return appointmentStatus;
+	}
+
+	public String getClientProgramId() {
+		return clientProgramId;
+	}
+
+	public String getClientProgramBeginDate() {
+		return clientProgramBeginDate;
+	}
+
+	public String getExtractPeriod() {
+		return extractPeriod;
+	}
+
+	public Integer getExtractPeriodGen() {
+		return extractPeriodGen;
+	}
+
+	public String getDischargeDate() {
+		return dischargeDate;
+	}
+
+	public String getDiagnosisDocumentId() {
+		return diagnosisDocumentId;
+	}
+
+	public String getStaffId() {
+		return staffId;
+	}
+
+	public String getModConsentConfigId() {
+		return modConsentConfigId;
+	}
+
+	public Long getModConsentConfigIdValue() {
+		return modConsentConfigIdValue;
+	}
+
+	public String getRevokeConsent() {
+		return revokeConsent;
+	}
+
+	public String getRevokeSensitiveConsent() {
+		return revokeSensitiveConsent;
+	}
+
+	public String getClinicianId() {
+		return clinicianId;
+	}
+
+	public String getOrganizationAccessCode() {
+		return organizationAccessCode;
+	}
+
+	public String getOrganizationLogin() {
+		return organizationLogin;
+	}
+
+	public String getOrganizationPassword() {
+		return organizationPassword;
+	}
+
+	public String getOrganizationSecretCode() {
+		return organizationSecretCode;
+	}
+
+	/** Raw EXCLUSIONS JSON string as received. */
+	public String getExclusions() {
+		return exclusions;
+	}
+
+	/** Whether the EXCLUSIONS JSON is an object with at least one field. */
+	public boolean hasExclusions() {
+		return exclusions().present;
+	}
+
+	/**
+	 * EXCLUSIONS_ARRAY exactly as it appears in EXCLUSIONS. Jackson writes a
+	 * {@link RawValue} through as is, so the array reaches CIH without ever being
+	 * bound to objects here.
+	 */
+	public RawValue getExclusionsArray() {
+		return exclusions().array;
+	}
+
+	private Exclusions exclusions() {
+		Exclusions scanned = scannedExclusions;
+		if (scanned == null) {
+			scanned = Exclusions.scan(exclusions);
+			scannedExclusions = scanned;
+		}
+		return scanned;
+	}
+
+	public Payload getPayload() {
+		return payload;
+	}
+
+	/**
+	 * Values read from the nested PAYLOAD JSON. String and numeric forms are
+	 * kept separately because the consumer and CIH endpoints expect them that way.
+	 */
+	public static final class Payload {
+
+		private static final Payload EMPTY = new Payload();
+
+		// only assigned while reading, the instance is not published before
+		private String clientProgramId;
+		private String activityDetailId;
+		private String activityLogId;
+		private String clientEpisodeId;
+		private Long clientEpisodeIdValue;
+		private String programId;
+		private String programName;
+		private String activityId;
+		private Long activityIdValue;
+		private String apptOrganizationId;
+		private Long apptOrganizationIdValue;
+		private Long dischargeDispositionId;
+		private Long dischargeLocationId;
+
+		private Payload() {
+		}
+
+		private static Payload read(String json) {
+			try (JsonParser parser = openObject(json)) {
+				if (parser == null) {
+					return EMPTY;
+				}
+				Payload payload = new Payload();
+				while (parser.nextToken() == JsonToken.FIELD_NAME) {
+					String name = parser.getCurrentName();
+					parser.nextToken();
+					payload.readField(name, parser);
+				}
+				return payload;
+			} catch (IOException e) {
+				LOGGER.error(e.getMessage(), e);
+				return EMPTY;
+			}
+		}
+
+		private void readField(String name, JsonParser parser) throws IOException {
+			switch (name) {
+			case Constants.Patient.CLIENT_PROGRAM_ID:
+				clientProgramId = text(parser);
+				break;
+			case Constants.Patient.ACTIVITY_DETAIL_ID:
+				activityDetailId = text(parser);
+				break;
+			case Constants.Patient.ACTIVITY_LOG_ID:
+				activityLogId = text(parser);
+				break;
+			case Constants.Patient.CLIENT_EPISODE_ID:
+				clientEpisodeIdValue = isLong(parser) ? Long.valueOf(longValue(parser)) : null;
+				clientEpisodeId = text(parser);
+				break;
+			case Constants.Patient.PROGRAM_ID:
+				programId = text(parser);
+				break;
+			case Constants.Patient.PROGRAM_NAME:
+				programName = text(parser);
+				break;
+			case Constants.Patient.ACTIVITY_ID:
+				activityIdValue = isLong(parser) ? Long.valueOf(longValue(parser)) : null;
+				activityId = text(parser);
+				break;
+			case Constants.Patient.APPT_ORGANIZATION_ID:
+				apptOrganizationIdValue = isLong(parser) ? Long.valueOf(longValue(parser)) : null;
+				apptOrganizationId = text(parser);
+				break;
+			case Constants.Patient.DISCHARGE_DISPOSITION_ID:
+				dischargeDispositionId = isLong(parser) ? Long.valueOf(longValue(parser)) : null;
+				parser.skipChildren();
+				break;
+			case Constants.Patient.DISCHARGE_LOCATION_ID:
+				dischargeLocationId = isLong(parser) ? Long.valueOf(longValue(parser)) : null;
+				parser.skipChildren();
+				break;
+			default:
+				parser.skipChildren();
+			}
+		}
+
+		public String getClientProgramId() {
+			return clientProgramId;
+		}
+
+		public String getActivityDetailId() {
+			return activityDetailId;
+		}
+
+		public String getActivityLogId() {
+			return activityLogId;
+		}
+
+		public String getClientEpisodeId() {
+			return clientEpisodeId;
+		}
+
+		public Long getClientEpisodeIdValue() {
+			return clientEpisodeIdValue;
+		}
+
+		public String getProgramId() {
+			return programId;
+		}
+
+		public String getProgramName() {
+			return programName;
+		}
+
+		public String getActivityId() {
+			return activityId;
+		}
+
+		public Long getActivityIdValue() {
+			return activityIdValue;
+		}
+
+		public String getApptOrganizationId() {
+			return apptOrganizationId;
+		}
+
+		public Long getApptOrganizationIdValue() {
+			return apptOrganizationIdValue;
+		}
+
+		public Long getDischargeDispositionId() {
+			return dischargeDispositionId;
+		}
+
+		public Long getDischargeLocationId() {
+			return dischargeLocationId;
+		}
+	}
+
+	/** Result of scanning EXCLUSIONS up to its EXCLUSIONS_ARRAY field. */
+	private static final class Exclusions {
+
+		private static final Exclusions NONE = new Exclusions(false, null);
+
+		private final boolean present;
+		private final RawValue array;
+
+		private Exclusions(boolean present, RawValue array) {
+			this.present = present;
+			this.array = array;
+		}
+
+		private static Exclusions scan(String json) {
+			try (JsonParser parser = openObject(json)) {
+				if (parser == null || parser.nextToken() != JsonToken.FIELD_NAME) {
+					return NONE;
+				}
+				do {
+					String name = parser.getCurrentName();
+					parser.nextToken();
+					if (Constants.Patient.EXCLUSIONS_ARRAY.equals(name)) {
+						return new Exclusions(true, rawValue(parser, json));
+					}
+					parser.skipChildren();
+				} while (parser.nextToken() == JsonToken.FIELD_NAME);
+				return new Exclusions(true, null);
+			} catch (IOException e) {
+				LOGGER.error(e.getMessage(), e);
+				return NONE;
+			}
+		}
+	}
+}
@@ -0,0 +1,155 @@
+package com.qualifacts.carelogic.gateway.queue;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Collapses messages about the same patient, event and type that arrive
+ * within a short window, before any remote call is made for them.
+ * <p>
+ * The first message of a key is processed right away and opens a window for
+ * that key. A duplicate arriving inside the window holds its consumer thread
+ * until the window ends; if a still newer duplicate arrives meanwhile, the
+ * waiting one is superseded and skipped. The duplicate that survives is
+ * processed and opens the next window. A burst of updates therefore costs at
+ * most two sends per window, and only duplicates pay any delay.
+ * <p>
+ * Only messages whose routes are all registered as last-write-wins (ADT
+ * status updates) are passed here; GNRINT, CCDA and refer-patient messages
+ * describe distinct events and are never coalesced. The key is everything
+ * that identifies the record an ADT update is about: patient, appointment,
+ * client program, diagnosis document, episode and activity, plus event and
+ * type. The index of keys is bounded; a key evicted while its message waits
+ * is simply processed.
+ * <p>
+ * Disabled while {@code window-ms} is 0. Superseding is only detected among
+ * messages consumed by this node.
+ */
+@Component
+public class PatientEventCoalescer {
+
+	@Value("${api.gateway.patient.coalescing.window-ms:0}")
+	private long windowMillis;
+
+	@Value("${api.gateway.patient.coalescing.max-keys:10000}")
+	private int maxKeys;
+
+	private final AtomicLong sequence = new AtomicLong();
+	private final AtomicLong coalescedCount = new AtomicLong();
+	private final AtomicLong evictionCount = new AtomicLong();
+
+	private long windowNanos;
+	private Map<String, Window> windows;
+
+	@PostConstruct
+	public void init() {
+		windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+		// guarded by synchronized (windows)
+		windows = new LinkedHashMap<String, Window>() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Window> eldest) {
+				if (size() > maxKeys) {
+					evictionCount.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	public boolean isEnabled() {
+		return windowMillis > 0;
+	}
+
+	/**
+	 * Registers the event. A message whose key has an open window waits for the
+	 * window to end.
+	 *
+	 * @return {@code true} when a newer message with the same key arrived
+	 *         meanwhile and this one must not be processed
+	 */
+	public boolean isSuperseded(PatientEvent patientEvent) {
+		String key = keyOf(patientEvent);
+		long mine = sequence.incrementAndGet();
+		long waitNanos;
+		synchronized (windows) {
+			long now = System.nanoTime();
+			Window window = windows.get(key);
+			if (window == null || now - window.endsAt >= 0) {
+				// re-inserting moves the key to the young end of the eviction order
+				windows.remove(key);
+				windows.put(key, new Window(now + windowNanos, mine));
+				return false;
+			}
+			window.latest = mine;
+			waitNanos = window.endsAt - now;
+		}
+
+		try {
+			TimeUnit.NANOSECONDS.sleep(waitNanos);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		synchronized (windows) {
+			Window window = windows.get(key);
+			if (window == null || window.latest == mine) {
+				windows.remove(key);
+				windows.put(key, new Window(System.nanoTime() + windowNanos, mine));
+				return false;
+			}
+		}
+		coalescedCount.incrementAndGet();
+		return true;
+	}
+
+	/** Messages skipped because a newer one superseded them; each one is a consumer fetch and CIH send saved. */
+	public long getCoalescedCount() {
+		return coalescedCount.get();
+	}
+
+	public long getEvictionCount() {
+		return evictionCount.get();
+	}
+
+	public int size() {
+		synchronized (windows) {
+			return windows.size();
+		}
+	}
+
+	private static String keyOf(PatientEvent patientEvent) {
+		PatientEvent.Payload payload = patientEvent.getPayload();
+		return new StringBuilder(96)
+				.append(patientEvent.getPatientId()).append('|')
+				.append(patientEvent.getDocumentId()).append('|')
+				.append(patientEvent.getAppointmentId()).append('|')
+				.append(patientEvent.getClientProgramId()).append('|')
+				.append(patientEvent.getDiagnosisDocumentId()).append('|')
+				.append(payload.getClientEpisodeId()).append('|')
+				.append(payload.getActivityId()).append('|')
+				.append(patientEvent.getEvent()).append('|')
+				.append(patientEvent.getType())
+				.toString();
+	}
+
+	private static final class Window {
+
+		private final long endsAt;
+		private long latest;
+
+		private Window(long endsAt, long latest) {
+			this.endsAt = endsAt;
+			this.latest = latest;
+		}
+	}
+}
@@ -0,0 +1,243 @@
+package com.qualifacts.carelogic.gateway.queue;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.HttpServerErrorException;
+import org.springframework.web.client.ResourceAccessException;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.netflix.hystrix.HystrixCircuitBreaker;
+import com.netflix.hystrix.HystrixCommandKey;
+import com.netflix.hystrix.exception.HystrixRuntimeException;
+
+/**
+ * Failure handling of api.gateway.queue.patient.
+ * <p>
+ * Transient downstream failures (timeouts, I/O errors, 5xx and 429 answers,
+ * Hystrix failures) are republished to a retry queue. There is one retry
+ * queue per delay in {@code delays-ms}, each with a queue-level TTL, because
+ * RabbitMQ only expires the head of a queue: a long delay never holds back a
+ * shorter one queued behind it. When the TTL runs out the broker dead-letters
+ * the message back to the patient queue. Attempt {@code n} uses the
+ * {@code n}-th delay, the last one once they run out. Once
+ * {@code max-attempts} is reached, or when the message itself is bad, it goes
+ * to {@link PatientRetryConfiguration#DEAD_LETTER_QUEUE} with the reason in
+ * {@link #HEADER_FAILURE_REASON}.
+ * <p>
+ * The received AMQP message is republished as is, body and properties
+ * (correlation id, message id, timestamp, content type) included; only the
+ * retry count and reason headers are added, plus
+ * {@link #HEADER_COMPLETED_HANDLERS}: the number of handlers of the message
+ * that had already succeeded, which the listener skips on the retry so a
+ * message routed to several handlers is not sent twice to the ones that
+ * worked.
+ * <p>
+ * While the CIH Hystrix circuit is open, messages are parked for
+ * {@code circuit-open-delay-ms} without spending an attempt and the consumer
+ * thread pauses, so a CIH brownout slows consumption down instead of flooding
+ * CIH with retries. One message per {@code circuit-open-probe-ms} still goes
+ * through so Hystrix can run its half-open test and close the circuit again.
+ */
+@Component
+@ConditionalOnProperty("rabbitmq.enabled")
+public class PatientFailureHandler {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(PatientFailureHandler.class);
+
+	public static final String HEADER_RETRY_COUNT = "x-retry-count";
+	public static final String HEADER_FAILURE_REASON = "x-failure-reason";
+	public static final String HEADER_COMPLETED_HANDLERS = "x-completed-handlers";
+
+	@Autowired
+	private RabbitTemplate rabbitTemplate;
+
+	@Value("${api.gateway.patient.retry.enabled:false}")
+	private boolean enabled;
+
+	@Value("${api.gateway.patient.retry.max-attempts:5}")
+	private int maxAttempts;
+
+	@Value("${api.gateway.patient.retry.delays-ms:1000,5000,30000,120000,300000}")
+	private String delaysProperty;
+
+	@Value("${api.gateway.patient.retry.circuit-open-delay-ms:5000}")
+	private long circuitOpenDelayMillis;
+
+	@Value("${api.gateway.patient.retry.circuit-open-pause-ms:1000}")
+	private long circuitOpenPauseMillis;
+
+	@Value("${api.gateway.patient.retry.circuit-open-probe-ms:5000}")
+	private long circuitOpenProbeMillis;
+
+	private long[] delays;
+
+	/** Last time a message was let through an open circuit, per command key. */
+	private final Map<String, AtomicLong> lastProbes = new ConcurrentHashMap<String, AtomicLong>();
+
+	@PostConstruct
+	public void init() {
+		String[] values = StringUtils.split(StringUtils.defaultString(delaysProperty), ',');
+		delays = new long[values.length];
+		for (int i = 0; i < values.length; i++) {
+			delays[i] = Long.parseLong(values[i].trim());
+		}
+		if (enabled && delays.length == 0) {
+			throw new IllegalStateException("api.gateway.patient.retry.delays-ms must list at least one delay");
+		}
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/** Every delay a retry queue is needed for, retry tiers and circuit-open parking. */
+	public TreeSet<Long> getRetryDelays() {
+		TreeSet<Long> retryDelays = new TreeSet<Long>();
+		for (long delay : delays) {
+			retryDelays.add(delay);
+		}
+		retryDelays.add(circuitOpenDelayMillis);
+		return retryDelays;
+	}
+
+	/**
+	 * Whether messages for the given command should be parked. Only
+	 * {@link HystrixCircuitBreaker#isOpen()} is used: unlike
+	 * {@code allowRequest()}, which before Hystrix 1.5.10 claims the single
+	 * half-open test, it never takes the probe away from the real command.
+	 * The probe is let through on a timer of our own instead.
+	 */
+	public boolean isCircuitOpen(String hystrixCommandKey) {
+		HystrixCircuitBreaker circuitBreaker = HystrixCircuitBreaker.Factory
+				.getInstance(HystrixCommandKey.Factory.asKey(hystrixCommandKey));
+		if (circuitBreaker == null || !circuitBreaker.isOpen()) {
+			return false;
+		}
+		AtomicLong lastProbe = lastProbes.get(hystrixCommandKey);
+		if (lastProbe == null) {
+			lastProbes.putIfAbsent(hystrixCommandKey, new AtomicLong());
+			lastProbe = lastProbes.get(hystrixCommandKey);
+		}
+		long now = System.currentTimeMillis();
+		long last = lastProbe.get();
+		// one message per probe interval goes through to Hystrix, which decides whether it is the half-open test
+		return now - last < circuitOpenProbeMillis || !lastProbe.compareAndSet(last, now);
+	}
+
+	/**
+	 * Parks a message on the circuit-open retry queue without spending an
+	 * attempt, then pauses the consumer thread.
+	 */
+	public void deferWhileCircuitOpen(Message message, String hystrixCommandKey) {
+		LOGGER.warn("Circuit {} is open, deferring message for {} ms", hystrixCommandKey, circuitOpenDelayMillis);
+		publish(PatientRetryConfiguration.retryQueue(circuitOpenDelayMillis), message, retryCount(message),
+				getCompletedHandlers(message), "circuit-open: " + hystrixCommandKey);
+		try {
+			TimeUnit.MILLISECONDS.sleep(circuitOpenPauseMillis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Routes a failed message to a retry queue or the dead-letter queue.
+	 *
+	 * @param completedHandlers handlers of the message, in routing order, that
+	 *            succeeded on this or an earlier attempt
+	 */
+	public void handle(Message message, Exception failure, int completedHandlers) {
+		String reason = failure.getClass().getSimpleName() + ": " + failure.getMessage();
+		if (!isTransient(failure)) {
+			LOGGER.error("Dead-lettering patient message: {}", reason, failure);
+			publish(PatientRetryConfiguration.DEAD_LETTER_QUEUE, message, retryCount(message), completedHandlers, reason);
+			return;
+		}
+
+		int attempts = retryCount(message) + 1;
+		if (attempts > maxAttempts) {
+			LOGGER.error("Dead-lettering patient message after {} attempts: {}", attempts - 1, reason, failure);
+			publish(PatientRetryConfiguration.DEAD_LETTER_QUEUE, message, attempts - 1, completedHandlers,
+					"retries-exhausted: " + reason);
+			return;
+		}
+		long delay = delays[Math.min(attempts, delays.length) - 1];
+		LOGGER.warn("Retrying patient message in {} ms, attempt {} of {}: {}", delay, attempts, maxAttempts, reason);
+		publish(PatientRetryConfiguration.retryQueue(delay), message, attempts, completedHandlers, reason);
+	}
+
+	/**
+	 * A failure is transient when anything in its cause chain is a timeout, an
+	 * I/O error other than a JSON one, a 5xx or 429 answer, or a Hystrix
+	 * failure; everything else is considered a bad message.
+	 */
+	static boolean isTransient(Throwable failure) {
+		for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+			if (cause instanceof HystrixRuntimeException || cause instanceof ResourceAccessException
+					|| cause instanceof HttpServerErrorException || cause instanceof TimeoutException) {
+				return true;
+			}
+			if (cause instanceof HttpClientErrorException) {
+				return ((HttpClientErrorException) cause).getStatusCode() == HttpStatus.TOO_MANY_REQUESTS;
+			}
+			if (cause instanceof IOException && !(cause instanceof JsonProcessingException)) {
+				return true;
+			}
+			if (cause.getCause() == cause) {
+				break;
+			}
+		}
+		return false;
+	}
+
+	/** Handlers that succeeded on an earlier attempt of a republished message, 0 for a new one. */
+	public static int getCompletedHandlers(Message message) {
+		return intHeader(message, HEADER_COMPLETED_HANDLERS);
+	}
+
+	private static int retryCount(Message message) {
+		return intHeader(message, HEADER_RETRY_COUNT);
+	}
+
+	private static int intHeader(Message message, String name) {
+		Object value = message.getMessageProperties().getHeaders().get(name);
+		if (value instanceof Number) {
+			return ((Number) value).intValue();
+		}
+		if (value != null) {
+			try {
+				return Integer.parseInt(value.toString());
+			} catch (NumberFormatException e) {
+				return 0;
+			}
+		}
+		return 0;
+	}
+
+	private void publish(String queue, Message message, int attempts, int completedHandlers, String reason) {
+		MessageProperties properties = message.getMessageProperties();
+		properties.setHeader(HEADER_RETRY_COUNT, attempts);
+		properties.setHeader(HEADER_COMPLETED_HANDLERS, completedHandlers);
+		properties.setHeader(HEADER_FAILURE_REASON, reason);
+		rabbitTemplate.send("", queue, message);
+	}
+}
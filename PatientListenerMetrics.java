@@ -0,0 +1,223 @@
+package com.qualifacts.carelogic.gateway.queue;
+
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+
+import org.springframework.amqp.support.AmqpHeaders;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+
+/**
+ * Micrometer meters of {@link ApiGatewayPatientListener}.
+ * <ul>
+ * <li>{@code patient.listener.message}: whole message, by type, event and outcome</li>
+ * <li>{@code patient.listener.stage}: decode, scheduling wait, config lookup, genealogy,
+ * patient fetch and CIH send, by stage, type and event. For ADT, CCDA and REFER_PATIENT the
+ * consumer fetch happens inside ConsumerApiService, so their {@code cih_send}
+ * includes it.</li>
+ * <li>{@code patient.listener.queue.lag}: time between publish (AMQP timestamp) and consumption</li>
+ * <li>{@code patient.listener.errors}: failures by exception, type and event</li>
+ * </ul>
+ * The counters of the configuration cache, genealogy index, coalescer and
+ * tenant scheduler are bound here as well.
+ * <p>
+ * Without a {@link MeterRegistry} bean the meters are registered on an empty
+ * composite registry, which makes them no-ops. Meters are looked up once per
+ * tag combination and then reused. The type and event tags only take the
+ * values {@link PatientMessageRouter} has routes for; anything else from the
+ * message is tagged {@code other}, so message content cannot create meters.
+ */
+@Component
+public class PatientListenerMetrics {
+
+	public static final String STAGE_DECODE = "decode";
+	public static final String STAGE_CONFIG_LOOKUP = "config_lookup";
+	public static final String STAGE_GENEALOGY = "genealogy";
+	public static final String STAGE_PATIENT_FETCH = "patient_fetch";
+	public static final String STAGE_CIH_SEND = "cih_send";
+	public static final String STAGE_SCHEDULING = "scheduling_wait";
+
+	public static final String OUTCOME_SUCCESS = "success";
+	public static final String OUTCOME_SKIPPED = "skipped";
+	public static final String OUTCOME_DEFERRED = "deferred";
+	public static final String OUTCOME_ERROR = "error";
+
+	private static final String NONE = "none";
+	private static final String OTHER = "other";
+
+	@Autowired(required = false)
+	private MeterRegistry meterRegistry;
+
+	@Autowired
+	private ConfigurationValueCache configurationValueCache;
+
+	@Autowired
+	private OrganizationGenealogyIndex organizationGenealogyIndex;
+
+	@Autowired
+	private PatientEventCoalescer patientEventCoalescer;
+
+	@Autowired
+	private TenantScheduler tenantScheduler;
+
+	@Autowired
+	private PatientMessageRouter router;
+
+	private final ConcurrentMap<MeterKey, Timer> stageTimers = new ConcurrentHashMap<MeterKey, Timer>();
+	private final ConcurrentMap<MeterKey, Timer> messageTimers = new ConcurrentHashMap<MeterKey, Timer>();
+	private final ConcurrentMap<MeterKey, Counter> errorCounters = new ConcurrentHashMap<MeterKey, Counter>();
+
+	private Timer queueLag;
+
+	@PostConstruct
+	public void init() {
+		if (meterRegistry == null) {
+			meterRegistry = new CompositeMeterRegistry();
+		}
+		queueLag = Timer.builder("patient.listener.queue.lag")
+				.description("Time between publish and consumption of a patient message")
+				.register(meterRegistry);
+
+		FunctionCounter.builder("patient.listener.config.cache", configurationValueCache, ConfigurationValueCache::getHitCount)
+				.tag("result", "hit").register(meterRegistry);
+		FunctionCounter.builder("patient.listener.config.cache", configurationValueCache, ConfigurationValueCache::getMissCount)
+				.tag("result", "miss").register(meterRegistry);
+		FunctionCounter.builder("patient.listener.config.cache", configurationValueCache, ConfigurationValueCache::getEvictionCount)
+				.tag("result", "eviction").register(meterRegistry);
+		Gauge.builder("patient.listener.config.cache.size", configurationValueCache, ConfigurationValueCache::size)
+				.register(meterRegistry);
+		Gauge.builder("patient.listener.genealogy.index.size", organizationGenealogyIndex, OrganizationGenealogyIndex::size)
+				.register(meterRegistry);
+		FunctionCounter.builder("patient.listener.genealogy.index.evictions", organizationGenealogyIndex,
+				OrganizationGenealogyIndex::getEvictionCount).register(meterRegistry);
+		FunctionCounter.builder("patient.listener.genealogy.refresh.failures", organizationGenealogyIndex,
+				OrganizationGenealogyIndex::getRefreshFailureCount)
+				.description("Background genealogy refreshes that failed; the stale chain keeps being served")
+				.register(meterRegistry);
+		FunctionCounter.builder("patient.listener.coalesced", patientEventCoalescer, PatientEventCoalescer::getCoalescedCount)
+				.description("Messages skipped because a newer one for the same patient superseded them")
+				.register(meterRegistry);
+		FunctionCounter.builder("patient.listener.coalescing.evictions", patientEventCoalescer, PatientEventCoalescer::getEvictionCount)
+				.register(meterRegistry);
+		Gauge.builder("patient.listener.scheduling.in.flight", tenantScheduler, TenantScheduler::getInFlight)
+				.register(meterRegistry);
+		Gauge.builder("patient.listener.scheduling.waiting", tenantScheduler, TenantScheduler::getWaiting)
+				.description("Consumer threads waiting for a per-organization permit")
+				.register(meterRegistry);
+	}
+
+	public Timer.Sample start() {
+		return Timer.start(meterRegistry);
+	}
+
+	public void recordStage(Timer.Sample sample, String stage, PatientEvent patientEvent) {
+		MeterKey key = meterKey(stage, patientEvent);
+		Timer timer = stageTimers.get(key);
+		if (timer == null) {
+			timer = Timer.builder("patient.listener.stage")
+					.tag("stage", stage)
+					.tag("type", key.type)
+					.tag("event", key.event)
+					.register(meterRegistry);
+			stageTimers.putIfAbsent(key, timer);
+		}
+		sample.stop(timer);
+	}
+
+	public void recordMessage(Timer.Sample sample, String outcome, PatientEvent patientEvent) {
+		MeterKey key = meterKey(outcome, patientEvent);
+		Timer timer = messageTimers.get(key);
+		if (timer == null) {
+			timer = Timer.builder("patient.listener.message")
+					.tag("outcome", outcome)
+					.tag("type", key.type)
+					.tag("event", key.event)
+					.register(meterRegistry);
+			messageTimers.putIfAbsent(key, timer);
+		}
+		sample.stop(timer);
+	}
+
+	public void recordError(Throwable error, PatientEvent patientEvent) {
+		MeterKey key = meterKey(error.getClass().getSimpleName(), patientEvent);
+		Counter counter = errorCounters.get(key);
+		if (counter == null) {
+			counter = Counter.builder("patient.listener.errors")
+					.tag("exception", key.name)
+					.tag("type", key.type)
+					.tag("event", key.event)
+					.register(meterRegistry);
+			errorCounters.putIfAbsent(key, counter);
+		}
+		counter.increment();
+	}
+
+	/** Records the queue lag when the publisher set the AMQP timestamp property. */
+	public void recordQueueLag(Map<String, Object> headers) {
+		Object timestamp = headers != null ? headers.get(AmqpHeaders.TIMESTAMP) : null;
+		if (timestamp instanceof Date) {
+			long lag = System.currentTimeMillis() - ((Date) timestamp).getTime();
+			if (lag >= 0) {
+				queueLag.record(lag, TimeUnit.MILLISECONDS);
+			}
+		}
+	}
+
+	private MeterKey meterKey(String name, PatientEvent patientEvent) {
+		if (patientEvent == null) {
+			return new MeterKey(name, NONE, NONE);
+		}
+		return new MeterKey(name, tagValue(patientEvent.getType(), router.routedType(patientEvent.getType())),
+				tagValue(patientEvent.getEvent(), router.routedEvent(patientEvent.getEvent())));
+	}
+
+	private static String tagValue(String value, String routedValue) {
+		if (value == null) {
+			return NONE;
+		}
+		return routedValue != null ? routedValue : OTHER;
+	}
+
+	/** Stage, outcome or exception name plus the type and event tags of a meter. */
+	private static final class MeterKey {
+
+		private final String name;
+		private final String type;
+		private final String event;
+
+		private MeterKey(String name, String type, String event) {
+			this.name = name;
+			this.type = type;
+			this.event = event;
+		}
+
+		@Override
+		public int hashCode() {
+			return (31 * name.hashCode() + type.hashCode()) * 31 + event.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof MeterKey)) {
+				return false;
+			}
+			MeterKey other = (MeterKey) obj;
+			return name.equals(other.name) && type.equals(other.type) && event.equals(other.event);
+		}
+	}
+}
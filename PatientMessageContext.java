@@ -0,0 +1,29 @@
+package com.qualifacts.carelogic.gateway.queue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Per-delivery state of {@link ApiGatewayPatientListener}. One instance is
+ * created for every message and only travels down the call stack of the
+ * consumer thread handling it, so the singleton listener can run with many
+ * concurrent consumers without sharing request data between patients.
+ */
+public class PatientMessageContext {
+
+	private final PatientEvent event;
+	private final Map<String, Object> params = new HashMap<String, Object>();
+
+	public PatientMessageContext(PatientEvent event) {
+		this.event = event;
+	}
+
+	public PatientEvent getEvent() {
+		return event;
+	}
+
+	/** Request parameters accumulated for the consumer and CIH calls of this message. */
+	public Map<String, Object> getParams() {
+		return params;
+	}
+}
@@ -0,0 +1,12 @@
+package com.qualifacts.carelogic.gateway.queue;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.qualifacts.carelogic.common.exception.BusinessException;
+
+/**
+ * Processes one route of a patient message, see {@link PatientMessageRouter}.
+ */
+public interface PatientMessageHandler {
+
+	void handle(PatientMessageContext context) throws BusinessException, JsonProcessingException;
+}
@@ -0,0 +1,192 @@
+package com.qualifacts.carelogic.gateway.queue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.springframework.stereotype.Component;
+
+/**
+ * Registry of the handlers of api.gateway.queue.patient, keyed on message type
+ * and event. A {@code null} type or event registers the handler for any value,
+ * so a message runs every handler registered for its type, for its event and
+ * for the pair, in registration order.
+ * <p>
+ * Each handler declares the enrichments it reads, which lets the listener
+ * skip the remote lookups no route of a message needs. Routes registered with
+ * {@link #registerLastWriteWins} declare that a newer message with the same
+ * identity makes an older one obsolete; only messages whose every route says
+ * so may be coalesced.
+ * <p>
+ * Resolutions are memoized per registered type and event; any value no route
+ * names shares one entry with {@code null}, so message content cannot grow
+ * the memo.
+ */
+@Component
+public class PatientMessageRouter {
+
+	/** Data the listener looks up before running the handlers of a message. */
+	public enum Enrichment {
+		CONFIGURATION_VALUE,
+		GENEALOGY
+	}
+
+	private final List<Route> routes = new ArrayList<Route>();
+	private final Map<RouteKey, Routing> resolved = new ConcurrentHashMap<RouteKey, Routing>();
+	// replaced, never mutated, on registration
+	private volatile Set<String> routedTypes = Collections.emptySet();
+	private volatile Set<String> routedEvents = Collections.emptySet();
+
+	public PatientMessageRouter register(String type, String event, Set<Enrichment> enrichments,
+			PatientMessageHandler handler) {
+		return add(new Route(type, event, enrichments, false, handler));
+	}
+
+	/** Registers a route whose messages only carry the latest state, such as ADT status updates. */
+	public PatientMessageRouter registerLastWriteWins(String type, String event, Set<Enrichment> enrichments,
+			PatientMessageHandler handler) {
+		return add(new Route(type, event, enrichments, true, handler));
+	}
+
+	private synchronized PatientMessageRouter add(Route route) {
+		String type = route.type;
+		String event = route.event;
+		routes.add(route);
+		if (type != null) {
+			Set<String> types = new HashSet<String>(routedTypes);
+			types.add(type);
+			routedTypes = types;
+		}
+		if (event != null) {
+			Set<String> events = new HashSet<String>(routedEvents);
+			events.add(event);
+			routedEvents = events;
+		}
+		resolved.clear();
+		return this;
+	}
+
+	/** Returns the handlers and enrichments for the given type and event; resolutions are memoized. */
+	public Routing route(String type, String event) {
+		// a value no route names only matches wildcard routes, exactly like null
+		String routedType = routedType(type);
+		String routedEvent = routedEvent(event);
+		RouteKey key = new RouteKey(routedType, routedEvent);
+		Routing routing = resolved.get(key);
+		if (routing == null) {
+			routing = resolve(routedType, routedEvent);
+			resolved.put(key, routing);
+		}
+		return routing;
+	}
+
+	/** The type if some route names it, otherwise {@code null}. */
+	public String routedType(String type) {
+		return type != null && routedTypes.contains(type) ? type : null;
+	}
+
+	/** The event if some route names it, otherwise {@code null}. */
+	public String routedEvent(String event) {
+		return event != null && routedEvents.contains(event) ? event : null;
+	}
+
+	private synchronized Routing resolve(String type, String event) {
+		List<PatientMessageHandler> handlers = new ArrayList<PatientMessageHandler>();
+		Set<Enrichment> enrichments = EnumSet.noneOf(Enrichment.class);
+		boolean lastWriteWins = true;
+		for (Route route : routes) {
+			if (route.matches(type, event)) {
+				handlers.add(route.handler);
+				enrichments.addAll(route.enrichments);
+				lastWriteWins &= route.lastWriteWins;
+			}
+		}
+		return new Routing(handlers, enrichments, lastWriteWins && !handlers.isEmpty());
+	}
+
+	public static final class Routing {
+
+		private final List<PatientMessageHandler> handlers;
+		private final Set<Enrichment> enrichments;
+		private final boolean lastWriteWins;
+
+		private Routing(List<PatientMessageHandler> handlers, Set<Enrichment> enrichments, boolean lastWriteWins) {
+			this.handlers = Collections.unmodifiableList(handlers);
+			this.enrichments = Collections.unmodifiableSet(enrichments);
+			this.lastWriteWins = lastWriteWins;
+		}
+
+		public List<PatientMessageHandler> getHandlers() {
+			return handlers;
+		}
+
+		public boolean requires(Enrichment enrichment) {
+			return enrichments.contains(enrichment);
+		}
+
+		public boolean isEmpty() {
+			return handlers.isEmpty();
+		}
+
+		/** Whether every handler of the message only needs its latest version. */
+		public boolean isLastWriteWins() {
+			return lastWriteWins;
+		}
+	}
+
+	private static final class Route {
+
+		private final String type;
+		private final String event;
+		private final Set<Enrichment> enrichments;
+		private final boolean lastWriteWins;
+		private final PatientMessageHandler handler;
+
+		private Route(String type, String event, Set<Enrichment> enrichments, boolean lastWriteWins,
+				PatientMessageHandler handler) {
+			this.type = type;
+			this.event = event;
+			this.enrichments = enrichments;
+			this.lastWriteWins = lastWriteWins;
+			this.handler = handler;
+		}
+
+		private boolean matches(String messageType, String messageEvent) {
+			return (type == null || type.equals(messageType)) && (event == null || event.equals(messageEvent));
+		}
+	}
+
+	private static final class RouteKey {
+
+		private final String type;
+		private final String event;
+
+		private RouteKey(String type, String event) {
+			this.type = type;
+			this.event = event;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * (type != null ? type.hashCode() : 0) + (event != null ? event.hashCode() : 0);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof RouteKey)) {
+				return false;
+			}
+			RouteKey other = (RouteKey) obj;
+			return (type == null ? other.type == null : type.equals(other.type))
+					&& (event == null ? other.event == null : event.equals(other.event));
+		}
+	}
+}
@@ -0,0 +1,52 @@
+package com.qualifacts.carelogic.gateway.queue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.amqp.core.Declarables;
+import org.springframework.amqp.core.Queue;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Queues used by {@link PatientFailureHandler}. The retry queues have no
+ * consumer: messages wait there for the queue TTL and are then dead-lettered
+ * by the broker back onto the patient queue. There is one per configured
+ * delay, named after it, because the delays are only known from properties.
+ * All of them are beans, so RabbitAdmin declares them when it first connects
+ * and again after every reconnect.
+ */
+@Configuration
+@ConditionalOnProperty({ "rabbitmq.enabled", "api.gateway.patient.retry.enabled" })
+public class PatientRetryConfiguration {
+
+	public static final String PATIENT_QUEUE = "api.gateway.queue.patient";
+	public static final String RETRY_QUEUE_PREFIX = "api.gateway.queue.patient.retry.";
+	public static final String DEAD_LETTER_QUEUE = "api.gateway.queue.patient.dlq";
+
+	/** Name of the retry queue holding messages for the given delay. */
+	public static String retryQueue(long delayMillis) {
+		return RETRY_QUEUE_PREFIX + delayMillis + "ms";
+	}
+
+	@Bean
+	public Declarables patientRetryQueues(PatientFailureHandler failureHandler) {
+		List<Queue> queues = new ArrayList<Queue>();
+		for (Long delay : failureHandler.getRetryDelays()) {
+			Map<String, Object> arguments = new HashMap<String, Object>();
+			arguments.put("x-message-ttl", delay);
+			arguments.put("x-dead-letter-exchange", "");
+			arguments.put("x-dead-letter-routing-key", PATIENT_QUEUE);
+			queues.add(new Queue(retryQueue(delay), true, false, false, arguments));
+		}
+		return new Declarables(queues);
+	}
+
+	@Bean
+	public Queue patientDeadLetterQueue() {
+		return new Queue(DEAD_LETTER_QUEUE, true);
+	}
+}
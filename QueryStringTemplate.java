@@ -0,0 +1,49 @@
+package com.qualifacts.carelogic.gateway.queue;
+
+/**
+ * Endpoint URL with a fixed, ordered list of query parameters, prepared once
+ * and expanded per message with a single {@link StringBuilder}.
+ * <p>
+ * Parameters whose value is {@code null} are left out. Values are appended
+ * as they are, like {@code UriComponentsBuilder.build().toString()} did, so
+ * the RestTemplate call still does the encoding.
+ */
+public final class QueryStringTemplate {
+
+	private final String url;
+	private final char firstSeparator;
+	private final String[] parameterPrefixes;
+	private final int baseCapacity;
+
+	public QueryStringTemplate(String url, String... parameterNames) {
+		this.url = url;
+		this.firstSeparator = url.indexOf('?') < 0 ? '?' : '&';
+		this.parameterPrefixes = new String[parameterNames.length];
+		int capacity = url.length();
+		for (int i = 0; i < parameterNames.length; i++) {
+			parameterPrefixes[i] = parameterNames[i] + '=';
+			capacity += parameterPrefixes[i].length() + 12;
+		}
+		this.baseCapacity = capacity;
+	}
+
+	/**
+	 * Builds the URL with the given values, positionally matching the parameter
+	 * names of the template.
+	 */
+	public String expand(Object... values) {
+		if (values.length != parameterPrefixes.length) {
+			throw new IllegalArgumentException("Expected " + parameterPrefixes.length + " values, got " + values.length);
+		}
+		StringBuilder uri = new StringBuilder(baseCapacity).append(url);
+		char separator = firstSeparator;
+		for (int i = 0; i < values.length; i++) {
+			Object value = values[i];
+			if (value != null) {
+				uri.append(separator).append(parameterPrefixes[i]).append(value);
+				separator = '&';
+			}
+		}
+		return uri.toString();
+	}
+}
@@ -0,0 +1,268 @@
+package com.qualifacts.carelogic.gateway.queue;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.annotation.PostConstruct;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Admission control of patient messages by organization: at most
+ * {@code max-concurrency} messages in flight, waiting organizations served by
+ * weighted round-robin, and the {@link Lane#PRIORITY} lane ahead of a capped
+ * {@link Lane#BULK} lane. Disabled by default.
+ */
+@Component
+public class TenantScheduler {
+
+	public enum Lane {
+		PRIORITY, BULK
+	}
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(TenantScheduler.class);
+
+	private static final String NO_ORGANIZATION = "";
+
+	@Value("${api.gateway.patient.scheduling.enabled:false}")
+	private boolean enabled;
+
+	// required: the listener container concurrency; only messages already held by a consumer can be reordered
+	@Value("${api.gateway.patient.scheduling.consumers:0}")
+	private int consumers;
+
+	// defaults to three quarters of consumers, so the other threads hold waiting messages to choose from
+	@Value("${api.gateway.patient.scheduling.max-concurrency:0}")
+	private int maxConcurrency;
+
+	@Value("${api.gateway.patient.scheduling.tenant-concurrency:4}")
+	private int tenantConcurrency;
+
+	@Value("${api.gateway.patient.scheduling.bulk-concurrency:8}")
+	private int bulkConcurrency;
+
+	@Value("${api.gateway.patient.scheduling.weights:}")
+	private String weightsProperty;
+
+	private final Map<String, Integer> weights = new HashMap<String, Integer>();
+
+	// all state below is guarded by synchronized (this)
+	private final Map<String, Tenant> tenants = new HashMap<String, Tenant>();
+	private final ArrayDeque<Tenant> priorityRing = new ArrayDeque<Tenant>();
+	private final ArrayDeque<Tenant> bulkRing = new ArrayDeque<Tenant>();
+	private int inFlight;
+	private int bulkInFlight;
+	private int waiting;
+
+	@PostConstruct
+	public void init() {
+		for (String entry : StringUtils.split(StringUtils.defaultString(weightsProperty), ',')) {
+			String[] weight = StringUtils.split(entry.trim(), ':');
+			if (weight.length == 2) {
+				weights.put(weight[0].trim(), Math.max(1, Integer.parseInt(weight[1].trim())));
+			}
+		}
+		if (enabled) {
+			if (consumers <= 0) {
+				throw new IllegalStateException(
+						"api.gateway.patient.scheduling.consumers must be set to the patient listener concurrency");
+			}
+			if (maxConcurrency <= 0) {
+				maxConcurrency = Math.max(1, consumers - consumers / 4);
+			} else if (maxConcurrency >= consumers) {
+				LOGGER.warn("scheduling max-concurrency {} leaves none of the {} consumers waiting, messages are never reordered",
+						maxConcurrency, consumers);
+			}
+		}
+		bulkConcurrency = Math.min(bulkConcurrency, maxConcurrency);
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Waits until the message may proceed.
+	 *
+	 * @throws InterruptedException when the consumer thread is interrupted while
+	 *             waiting, in which case no permit is held
+	 */
+	public synchronized Permit acquire(String organizationId, Lane lane) throws InterruptedException {
+		Tenant tenant = tenant(organizationId != null ? organizationId : NO_ORGANIZATION);
+		Permit permit = new Permit(tenant, lane);
+		ArrayDeque<Permit> waiters = tenant.waiters(lane);
+		if (waiters.isEmpty()) {
+			ring(lane).addLast(tenant);
+		}
+		waiters.addLast(permit);
+		waiting++;
+		dispatch();
+		try {
+			while (!permit.granted) {
+				wait();
+			}
+		} catch (InterruptedException e) {
+			if (permit.granted) {
+				release(permit);
+			} else {
+				withdraw(permit);
+			}
+			throw e;
+		}
+		return permit;
+	}
+
+	/** Permits that can be held at once, valid once the scheduler is initialized. */
+	public int getMaxConcurrency() {
+		return maxConcurrency;
+	}
+
+	public synchronized int getInFlight() {
+		return inFlight;
+	}
+
+	public synchronized int getWaiting() {
+		return waiting;
+	}
+
+	private synchronized void release(Permit permit) {
+		if (permit.released) {
+			return;
+		}
+		permit.released = true;
+		inFlight--;
+		permit.tenant.inFlight--;
+		if (permit.lane == Lane.BULK) {
+			bulkInFlight--;
+		}
+		forgetIfIdle(permit.tenant);
+		dispatch();
+	}
+
+	private void withdraw(Permit permit) {
+		ArrayDeque<Permit> waiters = permit.tenant.waiters(permit.lane);
+		waiters.remove(permit);
+		waiting--;
+		if (waiters.isEmpty()) {
+			ring(permit.lane).remove(permit.tenant);
+		}
+		forgetIfIdle(permit.tenant);
+	}
+
+	/**
+	 * Grants as many waiting permits as the limits allow, priority lane first.
+	 * Per-organization limits are only enforced while they let some other
+	 * organization run; otherwise a free permit goes to whoever is waiting.
+	 */
+	private void dispatch() {
+		boolean granted = false;
+		while (inFlight < maxConcurrency) {
+			if (grantNext(Lane.PRIORITY, true)) {
+				granted = true;
+			} else if (bulkInFlight < bulkConcurrency && grantNext(Lane.BULK, true)) {
+				granted = true;
+			} else if (grantNext(Lane.PRIORITY, false)) {
+				granted = true;
+			} else if (bulkInFlight < bulkConcurrency && grantNext(Lane.BULK, false)) {
+				granted = true;
+			} else {
+				break;
+			}
+		}
+		if (granted) {
+			notifyAll();
+		}
+	}
+
+	private boolean grantNext(Lane lane, boolean withinTenantLimit) {
+		ArrayDeque<Tenant> ring = ring(lane);
+		for (int i = ring.size(); i > 0; i--) {
+			Tenant tenant = ring.peekFirst();
+			if (withinTenantLimit && tenant.inFlight >= tenantConcurrency) {
+				tenant.credit = 0;
+				ring.addLast(ring.pollFirst());
+				continue;
+			}
+			ArrayDeque<Permit> waiters = tenant.waiters(lane);
+			Permit permit = waiters.pollFirst();
+			permit.granted = true;
+			waiting--;
+			inFlight++;
+			tenant.inFlight++;
+			if (lane == Lane.BULK) {
+				bulkInFlight++;
+			}
+
+			if (waiters.isEmpty()) {
+				ring.pollFirst();
+				tenant.credit = 0;
+			} else if (++tenant.credit >= tenant.weight) {
+				tenant.credit = 0;
+				ring.addLast(ring.pollFirst());
+			}
+			return true;
+		}
+		return false;
+	}
+
+	private Tenant tenant(String organizationId) {
+		Tenant tenant = tenants.get(organizationId);
+		if (tenant == null) {
+			Integer weight = weights.get(organizationId);
+			tenant = new Tenant(organizationId, weight != null ? weight : 1);
+			tenants.put(organizationId, tenant);
+		}
+		return tenant;
+	}
+
+	private void forgetIfIdle(Tenant tenant) {
+		if (tenant.inFlight == 0 && tenant.priorityWaiters.isEmpty() && tenant.bulkWaiters.isEmpty()) {
+			tenants.remove(tenant.organizationId);
+		}
+	}
+
+	private ArrayDeque<Tenant> ring(Lane lane) {
+		return lane == Lane.PRIORITY ? priorityRing : bulkRing;
+	}
+
+	private static final class Tenant {
+		private final String organizationId;
+		private final int weight;
+		private final ArrayDeque<Permit> priorityWaiters = new ArrayDeque<Permit>();
+		private final ArrayDeque<Permit> bulkWaiters = new ArrayDeque<Permit>();
+		private int inFlight;
+		private int credit;
+
+		private Tenant(String organizationId, int weight) {
+			this.organizationId = organizationId;
+			this.weight = weight;
+		}
+
+		private ArrayDeque<Permit> waiters(Lane lane) {
+			return lane == Lane.PRIORITY ? priorityWaiters : bulkWaiters;
+		}
+	}
+
+	/** Slot of one message; {@link #close()} it in a finally block. */
+	public final class Permit implements AutoCloseable {
+		private final Tenant tenant;
+		private final Lane lane;
+		private boolean granted;
+		private boolean released;
+
+		private Permit(Tenant tenant, Lane lane) {
+			this.tenant = tenant;
+			this.lane = lane;
+		}
+
+		@Override
+		public void close() {
+			release(this);
+		}
+	}
+}
@@ -0,0 +1,119 @@
+package com.qualifacts.carelogic.gateway.queue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.qualifacts.carelogic.gateway.service.util.Constants;
+
+/**
+ * Interleaves many deliveries on one listener instance, the way concurrent
+ * consumers do, and checks that no message sees another one's data. Plain
+ * JUnit: no Spring context and no broker.
+ */
+public class PatientMessageContextConcurrencyTest {
+
+	private static final int THREADS = 16;
+	private static final int MESSAGES_PER_THREAD = 2000;
+
+	private ExecutorService executor;
+
+	@Before
+	public void setUp() {
+		executor = Executors.newFixedThreadPool(THREADS);
+	}
+
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void deliveriesNeverSeeEachOther() throws Exception {
+		final ApiGatewayPatientListener listener = new ApiGatewayPatientListener();
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+		for (int t = 0; t < THREADS; t++) {
+			final int thread = t;
+			results.add(executor.submit(new Callable<Integer>() {
+				@Override
+				public Integer call() throws Exception {
+					start.await();
+					int checked = 0;
+					for (int i = 0; i < MESSAGES_PER_THREAD; i++) {
+						String id = thread + "-" + i;
+						Map<String, Object> received = listener.receive(message(id), new HashMap<String, Object>());
+						PatientMessageContext context = new PatientMessageContext(PatientEvent.from(received));
+						context.getParams().put(Constants.Patient.PATIENT_ID, context.getEvent().getPatientId());
+						Thread.yield();
+
+						PatientEvent event = context.getEvent();
+						assertEquals(id, event.getPatientId());
+						assertEquals(id, event.getAppointmentId());
+						assertEquals("program-" + id, event.getPayload().getClientProgramId());
+						assertEquals(Long.valueOf(i), event.getPayload().getActivityIdValue());
+						assertEquals(id, context.getParams().get(Constants.Patient.PATIENT_ID));
+						checked++;
+					}
+					return checked;
+				}
+			}));
+		}
+		start.countDown();
+		int checked = 0;
+		for (Future<Integer> result : results) {
+			checked += result.get(60, TimeUnit.SECONDS);
+		}
+		assertEquals(THREADS * MESSAGES_PER_THREAD, checked);
+	}
+
+	@Test
+	public void exclusionsScannedConcurrentlyAreConsistent() throws Exception {
+		Map<String, Object> message = message("1");
+		message.put(Constants.Patient.EXCLUSIONS,
+				"{\"other\":{\"a\":[1,2]},\"" + Constants.Patient.EXCLUSIONS_ARRAY + "\":[{\"code\":\"X\"}]}");
+		final PatientEvent event = PatientEvent.from(message);
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Future<String>> results = new ArrayList<Future<String>>();
+		for (int t = 0; t < THREADS; t++) {
+			results.add(executor.submit(new Callable<String>() {
+				@Override
+				public String call() throws Exception {
+					start.await();
+					assertTrue(event.hasExclusions());
+					return String.valueOf(event.getExclusionsArray().rawValue());
+				}
+			}));
+		}
+		start.countDown();
+		for (Future<String> result : results) {
+			assertEquals("[{\"code\":\"X\"}]", result.get(60, TimeUnit.SECONDS));
+		}
+	}
+
+	private static Map<String, Object> message(String id) {
+		int sequence = Integer.parseInt(id.substring(id.indexOf('-') + 1));
+		Map<String, Object> message = new HashMap<String, Object>();
+		message.put(Constants.Patient.TYPE, Constants.Patient.TYPE_GNRINT);
+		message.put(Constants.Patient.PATIENT_ID, id);
+		message.put(Constants.Patient.APPOINTMENT_ID, id);
+		message.put(Constants.Patient.ORGANIZATION_ID, "10");
+		message.put(Constants.Patient.PAYLOAD, "{\"" + Constants.Patient.CLIENT_PROGRAM_ID + "\":\"program-" + id
+				+ "\",\"" + Constants.Patient.ACTIVITY_ID + "\":" + sequence + "}");
+		return message;
+	}
+}